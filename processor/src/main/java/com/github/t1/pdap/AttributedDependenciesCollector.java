@@ -0,0 +1,239 @@
+package com.github.t1.pdap;
+
+import com.github.t1.pdap.DependencyListener.Kind;
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.code.Symbol.ClassSymbol;
+import com.sun.tools.javac.code.Type;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.JCTree.JCAnnotation;
+import com.sun.tools.javac.tree.JCTree.JCClassDecl;
+import com.sun.tools.javac.tree.JCTree.JCCompilationUnit;
+import com.sun.tools.javac.tree.JCTree.JCExpressionStatement;
+import com.sun.tools.javac.tree.JCTree.JCFieldAccess;
+import com.sun.tools.javac.tree.JCTree.JCIdent;
+import com.sun.tools.javac.tree.JCTree.JCImport;
+import com.sun.tools.javac.tree.JCTree.JCMethodDecl;
+import com.sun.tools.javac.tree.JCTree.JCMethodInvocation;
+import com.sun.tools.javac.tree.JCTree.JCNewClass;
+import com.sun.tools.javac.tree.JCTree.JCVariableDecl;
+import com.sun.tools.javac.tree.TreeInfo;
+import com.sun.tools.javac.tree.TreeScanner;
+import com.sun.tools.javac.util.List;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import static com.github.t1.pdap.DependencyListener.Kind.IMPORT;
+import static com.github.t1.pdap.DependencyListener.Kind.INSTANTIATION;
+import static com.github.t1.pdap.DependencyListener.Kind.INVOCATION;
+import static com.github.t1.pdap.DependencyListener.Kind.REFERENCE;
+import static com.github.t1.pdap.DependencyListener.Kind.RETURN_TYPE;
+import static com.github.t1.pdap.DependencyListener.Kind.SUPER_TYPE;
+import static com.github.t1.pdap.DependencyListener.Kind.TYPE_BOUND;
+import static com.github.t1.pdap.DependencyListener.Kind.VARIABLE_TYPE;
+import static com.sun.tools.javac.code.Flags.ANONCONSTR;
+import static com.sun.tools.javac.code.Flags.GENERATEDCONSTR;
+
+/**
+ * Collects the dependencies of a top-level type from its attributed tree, i.e. after the compiler has resolved
+ * all symbols and types, so there is no need to resolve names or method overloads by hand,
+ * as the {@link DependenciesCollector} has to.
+ * <p>
+ * The listener gets the same kinds of events as from the {@link DependenciesCollector}: the imports for the first type
+ * in the compilation unit, and nothing for the code the compiler generates, i.e. default constructors,
+ * the constructors of anonymous classes, and the implicit <code>super()</code> calls.
+ */
+class AttributedDependenciesCollector extends TreeScanner {
+    private final PackageNames packageNames;
+    private final IgnoredPackages ignored;
+    private final DependencyListener listener;
+    private final ClassSymbol type;
+    /** The packages the type depends on, mapped to how it uses them */
+    final Map<String, Usage> dependencies = new HashMap<>();
+    /** The class, method, or field currently being scanned */
+    private Symbol currentMember;
+    /** The subtrees that use their dependencies in a specific way, e.g. the return type of a method */
+    private final Map<JCTree, Kind> kinds = new IdentityHashMap<>();
+    /** How the tree currently being scanned uses its dependencies */
+    private Kind kind = REFERENCE;
+    /** Are we in an anonymous class, whose members are part of the current member? */
+    private boolean anonymous = false;
+    /** The source position of the body of the constructor currently being scanned, or <code>-1</code> */
+    private int constructorBodyPosition = -1;
+
+    AttributedDependenciesCollector(PackageNames packageNames, IgnoredPackages ignored, DependencyListener listener,
+                                    JCCompilationUnit compilationUnit, JCClassDecl classDecl) {
+        this.packageNames = packageNames;
+        this.ignored = ignored;
+        this.listener = listener;
+        this.type = classDecl.sym;
+        if (compilationUnit != null && isFirstType(compilationUnit, classDecl))
+            for (JCImport i : compilationUnit.getImports())
+                addImport(i);
+        scan(classDecl);
+        dependencies.remove(packageNames.of(classDecl.sym));
+    }
+
+    private static boolean isFirstType(JCCompilationUnit compilationUnit, JCClassDecl classDecl) {
+        for (JCTree tree : compilationUnit.defs)
+            if (tree instanceof JCClassDecl)
+                return tree == classDecl;
+        return false;
+    }
+
+    /** Only for the listener: an unused import is not a dependency */
+    private void addImport(JCImport i) {
+        JCFieldAccess fieldAccess = (JCFieldAccess) i.getQualifiedIdentifier();
+        Symbol symbol;
+        if (!i.staticImport && fieldAccess.name.contentEquals("*")) {
+            symbol = TreeInfo.symbol(fieldAccess.selected);
+        } else {
+            if (i.staticImport)
+                fieldAccess = (JCFieldAccess) fieldAccess.selected;
+            symbol = fieldAccess.sym;
+        }
+        if (symbol != null)
+            listener.dependency(type, packageNames.of(symbol), type, IMPORT);
+    }
+
+    /** Scan the subtrees marked with a {@link Kind} with that kind */
+    @Override public void scan(JCTree tree) {
+        Kind marked = (tree == null) ? null : kinds.remove(tree);
+        if (marked == null) {
+            super.scan(tree);
+        } else {
+            Kind outer = kind;
+            kind = marked;
+            super.scan(tree);
+            kind = outer;
+        }
+    }
+
+    private void mark(JCTree tree, Kind kind) {
+        if (tree != null)
+            kinds.put(tree, kind);
+    }
+
+    private void mark(List<? extends JCTree> trees, Kind kind) {
+        for (JCTree tree : trees)
+            mark(tree, kind);
+    }
+
+    @Override public void visitClassDef(JCClassDecl classDecl) {
+        mark(classDecl.extending, SUPER_TYPE);
+        mark(classDecl.implementing, SUPER_TYPE);
+        mark(classDecl.typarams, TYPE_BOUND);
+        if (classDecl.name.isEmpty()) {
+            // anonymous classes are part of the member they are declared in, and their super type is the instantiated one
+            boolean outerAnonymous = anonymous;
+            anonymous = true;
+            scan(classDecl.defs);
+            anonymous = outerAnonymous;
+            return;
+        }
+        Symbol outer = currentMember;
+        boolean outerAnonymous = anonymous;
+        currentMember = classDecl.sym;
+        anonymous = false;
+        super.visitClassDef(classDecl);
+        currentMember = outer;
+        anonymous = outerAnonymous;
+    }
+
+    @Override public void visitMethodDef(JCMethodDecl method) {
+        if ((method.mods.flags & (GENERATEDCONSTR | ANONCONSTR)) != 0)
+            return;
+        mark(method.restype, RETURN_TYPE);
+        mark(method.typarams, TYPE_BOUND);
+        if (anonymous) {
+            int outerBodyPosition = constructorBodyPosition;
+            constructorBodyPosition = -1;
+            super.visitMethodDef(method);
+            constructorBodyPosition = outerBodyPosition;
+            return;
+        }
+        Symbol outer = currentMember;
+        int outerBodyPosition = constructorBodyPosition;
+        currentMember = method.sym;
+        constructorBodyPosition = (TreeInfo.isConstructor(method) && method.body != null) ? method.body.pos : -1;
+        super.visitMethodDef(method);
+        currentMember = outer;
+        constructorBodyPosition = outerBodyPosition;
+    }
+
+    /** The compiler inserts a <code>super()</code> call at the position of the body of a constructor without one */
+    @Override public void visitExec(JCExpressionStatement statement) {
+        if (TreeInfo.isSuperCall(statement) && ((JCMethodInvocation) statement.expr).args.isEmpty()
+            && statement.pos == constructorBodyPosition)
+            return;
+        super.visitExec(statement);
+    }
+
+    @Override public void visitVarDef(JCVariableDecl variable) {
+        mark(variable.vartype, VARIABLE_TYPE);
+        if (anonymous || variable.sym == null || !(variable.sym.owner instanceof ClassSymbol)) { // local variables are part of the method
+            super.visitVarDef(variable);
+            return;
+        }
+        Symbol outer = currentMember;
+        currentMember = variable.sym;
+        super.visitVarDef(variable);
+        currentMember = outer;
+    }
+
+    /** Using an annotation is not a dependency */
+    @Override public void visitAnnotation(JCAnnotation annotation) {}
+
+    /** <code>this</code> is not a dependency, not even on the own package */
+    @Override public void visitIdent(JCIdent identifier) {
+        if (!identifier.name.contentEquals("this"))
+            addSymbol(identifier.sym, identifier);
+        super.visitIdent(identifier);
+    }
+
+    @Override public void visitSelect(JCFieldAccess fieldAccess) {
+        addSymbol(fieldAccess.sym, fieldAccess);
+        super.visitSelect(fieldAccess);
+    }
+
+    @Override public void visitNewClass(JCNewClass newClass) {
+        mark(newClass.clazz, INSTANTIATION);
+        super.visitNewClass(newClass);
+    }
+
+    /** The return type of a method is an indirect dependency */
+    @Override public void visitApply(JCMethodInvocation methodInvocation) {
+        mark(methodInvocation.meth, INVOCATION);
+        addType(methodInvocation.type, INVOCATION, methodInvocation);
+        super.visitApply(methodInvocation);
+    }
+
+    /** Types are a dependency on their package; methods and fields on the package of the type declaring them */
+    private void addSymbol(Symbol symbol, JCTree reference) {
+        if (symbol == null)
+            return;
+        Symbol type = (symbol instanceof ClassSymbol) ? symbol : symbol.owner;
+        if (type instanceof ClassSymbol)
+            add((ClassSymbol) type, kind, reference);
+    }
+
+    private void addType(Type type, Kind kind, JCTree reference) {
+        if (type != null && type.tsym instanceof ClassSymbol)
+            add((ClassSymbol) type.tsym, kind, reference);
+    }
+
+    /**
+     * Primitives, <code>void</code>, and arrays are in the unnamed package, which can't be imported anyway
+     *
+     * @param reference the tree referencing the target, for the position of the site
+     */
+    private void add(ClassSymbol target, Kind kind, JCTree reference) {
+        String packageName = packageNames.of(target);
+        if (packageName.isEmpty())
+            return;
+        listener.dependency(type, packageName, currentMember, kind);
+        if (!ignored.matches(packageName))
+            Usage.add(dependencies, packageName, currentMember, TreeInfo.getStartPos(reference));
+    }
+}
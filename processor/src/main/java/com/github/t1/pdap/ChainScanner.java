@@ -0,0 +1,59 @@
+package com.github.t1.pdap;
+
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.JCTree.JCBinary;
+import com.sun.tools.javac.tree.JCTree.JCFieldAccess;
+import com.sun.tools.javac.tree.JCTree.JCMethodInvocation;
+import com.sun.tools.javac.tree.JCTree.JCParens;
+import com.sun.tools.javac.tree.JCTree.JCTypeCast;
+import com.sun.tools.javac.tree.TreeScanner;
+
+/**
+ * A {@link TreeScanner} that walks chains of expressions in a loop instead of recursively, so very long
+ * method chains like <code>builder.a().b().c()...</code> or string concatenations like <code>"a" + b + "c" + ...</code>
+ * don't overflow the stack. The links of a chain are method invocations, field accesses, binary operations,
+ * parentheses, and type casts; their other subtrees, e.g. the arguments of a method, are scanned recursively, as usual.
+ * <p>
+ * Each link is visited completely before the next (inner) link of the chain, so the <code>visit</code> methods
+ * of the links must not rely on their chain child being visited within their own visit.
+ */
+class ChainScanner extends TreeScanner {
+    /** The next link of the chain we're walking, so we defer its scan to the loop instead of recursing */
+    private JCTree next;
+    /** The link that was deferred while visiting the current link */
+    private JCTree deferred;
+
+    @Override public void scan(JCTree tree) {
+        if (tree == null)
+            return;
+        if (tree == next) {
+            deferred = tree;
+            return;
+        }
+        JCTree outerNext = next;
+        JCTree outerDeferred = deferred;
+        JCTree link = tree;
+        while (link != null) {
+            next = chainLink(link);
+            deferred = null;
+            super.scan(link);
+            link = deferred;
+        }
+        next = outerNext;
+        deferred = outerDeferred;
+    }
+
+    private static JCTree chainLink(JCTree tree) {
+        if (tree instanceof JCMethodInvocation)
+            return ((JCMethodInvocation) tree).meth;
+        if (tree instanceof JCFieldAccess)
+            return ((JCFieldAccess) tree).selected;
+        if (tree instanceof JCBinary)
+            return ((JCBinary) tree).lhs;
+        if (tree instanceof JCParens)
+            return ((JCParens) tree).expr;
+        if (tree instanceof JCTypeCast)
+            return ((JCTypeCast) tree).expr;
+        return null;
+    }
+}
@@ -0,0 +1,253 @@
+package com.github.t1.pdap;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.tools.JavaFileObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static java.util.Collections.reverse;
+import static java.util.Comparator.comparing;
+
+/**
+ * The dependencies between all packages of the compilation, i.e. those allowed in the package-info of the source
+ * and those actually used, to check the rules that need the whole graph: cycles and transitive dependencies,
+ * and to compute the coupling metrics.
+ * It collects them across all rounds, as these may span packages compiled in different rounds,
+ * so it holds only ids, names, and source positions, and no elements.
+ * <p>
+ * Finding the cycles is linear in the number of packages and dependencies: the {@link StrongComponents}
+ * plus a breadth-first search within each component for the shortest cycle through its first package.
+ */
+class CompilationGraph {
+    private final PackageIds ids = new PackageIds();
+    /** The dependencies allowed or used */
+    private final PackageGraph graph = new PackageGraph(ids);
+    /** The dependencies used */
+    private final PackageGraph used = new PackageGraph(ids);
+    private final CompilationUnits units = new CompilationUnits();
+    /** The first site using each dependency, as a pair of compilation unit id and source position, indexed by the edge */
+    private final Map<Long, Long> sites = new HashMap<>();
+    private final TransitiveRules rules = new TransitiveRules();
+    /** The patterns of the packages each scanned source package must not depend on transitively, sorted by source */
+    private final Map<String, PackagePatterns> transitiveRules = new TreeMap<>();
+    /** The closure of the {@link #used} dependencies, or <code>null</code> if it has to be computed (again) */
+    private TransitiveClosure closure;
+    /** The number of types analyzed in each package, indexed by id */
+    private int[] types = new int[16];
+    /** The number of those types that are abstract, i.e. interfaces and abstract classes */
+    private int[] abstractTypes = new int[16];
+
+    /** Remember the transitive rules of the source package */
+    void scan(Elements elements, String source) {
+        if (transitiveRules.containsKey(source))
+            return;
+        PackagePatterns patterns = rules.of(elements, source);
+        if (patterns != null) {
+            ids.of(source);
+            transitiveRules.put(source, patterns);
+        }
+    }
+
+    /** A dependency allowed in the package-info of the source */
+    void allow(String source, String target) { graph.add(ids.of(source), ids.of(target)); }
+
+    /** A dependency used in the source file; the first position of its first use is the site we report */
+    void use(String source, String target, Usage usage, JavaFileObject file) {
+        int sourceId = ids.of(source);
+        int targetId = ids.of(target);
+        graph.add(sourceId, targetId);
+        if (!used.contains(sourceId, targetId)) {
+            used.add(sourceId, targetId);
+            closure = null;
+        }
+        Long edge = edge(sourceId, targetId);
+        if (file == null || sites.containsKey(edge))
+            return;
+        for (int i = 0; i < usage.positionCount(); i++)
+            if (usage.position(i) >= 0) {
+                sites.put(edge, ((long) units.of(file) << 32) | usage.position(i));
+                return;
+            }
+    }
+
+    /** Count the analyzed type and its member types, for the abstractness of the package */
+    void type(String packageName, TypeElement type) {
+        int id = ids.of(packageName);
+        if (id >= types.length) {
+            types = Arrays.copyOf(types, Math.max(id + 1, types.length * 2));
+            abstractTypes = Arrays.copyOf(abstractTypes, types.length);
+        }
+        count(id, type);
+    }
+
+    private void count(int id, TypeElement type) {
+        types[id]++;
+        if (type.getKind().isInterface() || type.getModifiers().contains(Modifier.ABSTRACT))
+            abstractTypes[id]++;
+        for (Element member : type.getEnclosedElements())
+            if (member.getKind().isClass() || member.getKind().isInterface())
+                count(id, (TypeElement) member);
+    }
+
+    private static Long edge(int sourceId, int targetId) { return ((long) sourceId << 32) | targetId; }
+
+    /** @return how the source depends on the target, e.g. <code>used at /app/Foo.java:12:5</code> */
+    String witness(String source, String target) {
+        int sourceId = ids.of(source);
+        int targetId = ids.of(target);
+        Long site = sites.get(edge(sourceId, targetId));
+        if (site != null)
+            return "used at " + units.location((int) (site >>> 32), (int) (long) site);
+        return used.contains(sourceId, targetId) ? "used" : "allowed";
+    }
+
+    /** @return the shortest cycle through the first package (by name) of each cycle, the target of the last being the first */
+    List<List<String>> cycles() {
+        StrongComponents components = new StrongComponents(graph);
+        List<List<String>> cycles = new ArrayList<>();
+        Search search = new Search();
+        for (int component = 0; component < components.count; component++) {
+            if (components.size(component) < 2)
+                continue;
+            int start = components.member(component, 0);
+            for (int i = 1; i < components.size(component); i++)
+                if (ids.name(components.member(component, i)).compareTo(ids.name(start)) < 0)
+                    start = components.member(component, i);
+            cycles.add(search.shortestPath(graph, start, start, components.component));
+        }
+        cycles.sort(comparing(cycle -> cycle.get(0)));
+        return cycles;
+    }
+
+    interface TransitiveViolationVisitor {
+        /** @param path the shortest path from the source to the target, starting with the source and ending with the target */
+        void visit(String source, String target, List<String> path);
+    }
+
+    /** Visit each package a scanned source package depends on transitively, although a rule forbids that */
+    void forEachTransitiveViolation(TransitiveViolationVisitor visitor) {
+        if (transitiveRules.isEmpty())
+            return;
+        Search search = new Search();
+        transitiveRules.forEach((source, patterns) -> {
+            int sourceId = ids.of(source);
+            BitSet reachable = closure().reachable(sourceId);
+            for (int targetId = reachable.nextSetBit(0); targetId >= 0; targetId = reachable.nextSetBit(targetId + 1)) {
+                String target = ids.name(targetId);
+                if (targetId != sourceId && patterns.match(target) != null) {
+                    List<String> path = search.shortestPath(used, sourceId, targetId, null);
+                    path.add(target);
+                    visitor.visit(source, target, path);
+                }
+            }
+        });
+    }
+
+    /** The names of all packages the source depends on, directly or transitively, sorted by name */
+    List<String> reachable(String source) {
+        BitSet reachable = closure().reachable(ids.of(source));
+        List<String> names = new ArrayList<>();
+        for (int id = reachable.nextSetBit(0); id >= 0; id = reachable.nextSetBit(id + 1))
+            names.add(ids.name(id));
+        names.sort(null);
+        return names;
+    }
+
+    /** The names of all source packages that use any dependency, sorted by name */
+    List<String> sources() {
+        List<String> names = new ArrayList<>();
+        for (int id = 0; id < used.size(); id++)
+            if (!used.targets(id).isEmpty())
+                names.add(ids.name(id));
+        names.sort(null);
+        return names;
+    }
+
+    interface MetricsVisitor {
+        /**
+         * @param afferent the number of packages depending on this package, i.e. the fan-in
+         * @param efferent the number of packages this package depends on, i.e. the fan-out
+         * @param types the number of types analyzed in the package, including member types
+         * @param abstractTypes the number of those types that are interfaces or abstract classes
+         */
+        void visit(String packageName, int afferent, int efferent, int types, int abstractTypes);
+    }
+
+    /** Visit the coupling metrics of the packages with analyzed types, sorted by name, computed in one pass over the graph */
+    void forEachMetrics(MetricsVisitor visitor) {
+        int[] afferent = new int[ids.size()];
+        for (int source = 0; source < used.size(); source++) {
+            BitSet targets = used.targets(source);
+            for (int target = targets.nextSetBit(0); target >= 0; target = targets.nextSetBit(target + 1))
+                afferent[target]++;
+        }
+        List<Integer> packages = new ArrayList<>();
+        for (int id = 0; id < Math.min(types.length, ids.size()); id++)
+            if (types[id] > 0)
+                packages.add(id);
+        packages.sort(comparing(ids::name));
+        for (int id : packages)
+            visitor.visit(ids.name(id), afferent[id], used.targets(id).cardinality(), types[id], abstractTypes[id]);
+    }
+
+    private TransitiveClosure closure() {
+        if (closure == null)
+            closure = new TransitiveClosure(used);
+        return closure;
+    }
+
+    /** Breadth-first searches, sharing their arrays, as they reset them when they are done */
+    private class Search {
+        private final int[] parents = new int[ids.size()];
+        private final int[] queue = new int[ids.size()];
+
+        private Search() { Arrays.fill(parents, -1); }
+
+        /**
+         * Search from the start to the end, and if there are <code>components</code>, without leaving the component of the start.
+         *
+         * @return the path from the start to the package with the dependency on the end, i.e. without the end
+         */
+        private List<String> shortestPath(PackageGraph graph, int start, int end, int[] components) {
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = start;
+            parents[start] = start;
+            try {
+                while (head < tail) {
+                    int node = queue[head++];
+                    BitSet targets = graph.targets(node);
+                    for (int target = targets.nextSetBit(0); target >= 0; target = targets.nextSetBit(target + 1)) {
+                        if (target == end)
+                            return path(start, node);
+                        if (parents[target] < 0 && (components == null || components[target] == components[start])) {
+                            parents[target] = node;
+                            queue[tail++] = target;
+                        }
+                    }
+                }
+                throw new IllegalStateException("no path from " + ids.name(start) + " to " + ids.name(end));
+            } finally {
+                for (int i = 0; i < tail; i++)
+                    parents[queue[i]] = -1;
+            }
+        }
+
+        private List<String> path(int start, int last) {
+            List<String> path = new ArrayList<>();
+            for (int node = last; node != start; node = parents[node])
+                path.add(ids.name(node));
+            path.add(ids.name(start));
+            reverse(path);
+            return path;
+        }
+    }
+}
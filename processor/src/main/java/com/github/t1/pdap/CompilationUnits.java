@@ -0,0 +1,81 @@
+package com.github.t1.pdap;
+
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dense <code>int</code> ids for the source files of compilation units, so we can store source positions
+ * as pairs of <code>int</code>s instead of retaining elements or trees. We look up the line and column
+ * of a position only for reporting, by reading the file again.
+ */
+class CompilationUnits {
+    private final Map<JavaFileObject, Integer> ids = new HashMap<>();
+    private final List<JavaFileObject> files = new ArrayList<>();
+    /** The positions where the lines start, indexed by id; computed only when needed */
+    private final List<int[]> lineStarts = new ArrayList<>();
+
+    int of(JavaFileObject file) {
+        Integer id = ids.get(file);
+        if (id == null) {
+            id = files.size();
+            ids.put(file, id);
+            files.add(file);
+            lineStarts.add(null);
+        }
+        return id;
+    }
+
+    /** @return the file name, line, and column of the position in the compilation unit, e.g. <code>/app/Foo.java:12:5</code> */
+    String location(int id, int position) {
+        StringBuilder out = new StringBuilder();
+        visit(id, position, (file, line, column) -> out.append(file.getName()).append((line == 0) ? "" : ":" + line + ":" + column));
+        return out.toString();
+    }
+
+    /** Visit the file, line, and column of the position in the compilation unit; the line and column are 0, if we can't read the file */
+    void visit(int id, int position, SiteVisitor visitor) {
+        JavaFileObject file = files.get(id);
+        int[] starts = lineStarts(id);
+        if (starts == null) {
+            visitor.visit(file, 0, 0);
+            return;
+        }
+        int line = Arrays.binarySearch(starts, position);
+        if (line < 0)
+            line = -line - 2;
+        visitor.visit(file, line + 1, position - starts[line] + 1);
+    }
+
+    interface SiteVisitor {
+        void visit(JavaFileObject file, int line, int column);
+    }
+
+    private int[] lineStarts(int id) {
+        int[] starts = lineStarts.get(id);
+        if (starts == null) {
+            CharSequence content;
+            try {
+                content = files.get(id).getCharContent(true);
+            } catch (IOException e) {
+                return null;
+            }
+            starts = new int[16];
+            int count = 1;
+            for (int i = 0; i < content.length(); i++) {
+                if (content.charAt(i) == '\n') {
+                    if (count == starts.length)
+                        starts = Arrays.copyOf(starts, count * 2);
+                    starts[count++] = i + 1;
+                }
+            }
+            starts = Arrays.copyOf(starts, count);
+            lineStarts.set(id, starts);
+        }
+        return starts;
+    }
+}
@@ -1,16 +1,19 @@
 package com.github.t1.pdap;
 
 import com.github.t1.pdap.Dependencies.Dependency.Type;
+import com.github.t1.pdap.Policies.Policy;
 
 import javax.lang.model.element.Element;
 import javax.lang.model.element.PackageElement;
 import javax.lang.model.util.Elements;
-import java.util.AbstractMap.SimpleEntry;
+import javax.tools.JavaFileObject;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.Map;
 import java.util.stream.Stream;
 
 import static com.github.t1.pdap.Dependencies.Dependency.Type.CYCLE;
@@ -46,103 +49,238 @@ class Dependencies {
         /** Some source element that requires this dependency or null if not applicable or not found */
         Element element;
         boolean used = false;
+        /** Pairs of compilation unit ids and source positions of the elements using a forbidden dependency */
+        private int[] sites;
+        private int siteCount = 0;
+        /** The number of sites we didn't record, as we already had the maximum */
+        private int moreSites = 0;
 
         Dependency(String source, String target, Type type) {
             this.source = source;
             this.target = target;
             this.type = type;
         }
+
+        private void addSites(int unit, Usage usage, int maxSites) {
+            for (int i = 0; i < usage.positionCount(); i++) {
+                if (siteCount == maxSites) {
+                    moreSites += usage.positionCount() - i;
+                    return;
+                }
+                if (sites == null)
+                    sites = new int[2 * Math.min(maxSites, 8)];
+                else if (2 * siteCount == sites.length)
+                    sites = Arrays.copyOf(sites, 2 * Math.min(maxSites, 2 * siteCount));
+                sites[2 * siteCount] = unit;
+                sites[2 * siteCount + 1] = usage.position(i);
+                siteCount++;
+            }
+        }
     }
 
     private final Elements elements;
+    private final Policies policies;
+    /** The dependencies of all rounds, to which we add those we find */
+    private final CompilationGraph compilation;
+    /** The maximum number of sites we record for each forbidden dependency */
+    private final int maxSites;
+    private final CompilationUnits units = new CompilationUnits();
+    /** The policies of the source packages already scanned */
+    private final Map<String, Policy> scanned = new HashMap<>();
+    /** All dependencies in the order they were added, for reporting */
     private final List<Dependency> dependencies = new ArrayList<>();
-    private final List<PackageElement> missingDependencies = new ArrayList<>();
+    /** The same dependencies indexed by source and target package */
+    private final Map<String, Map<String, Dependency>> index = new HashMap<>();
+    /** The package names interned as dense ids, for the graph and the counters */
+    private final PackageIds ids = new PackageIds();
+    /** The dependencies actually used by some type, folded in as soon as the type is collected */
+    private final PackageGraph graph = new PackageGraph(ids);
+    /** How often each source package references each target package */
+    private final UsageCounters usages = new UsageCounters();
+    /** How many elements of each source package use each target package */
+    private final UsageCounters users = new UsageCounters();
+    /** The scanned policies compiled to bits: the targets allowed in the package-info of each source package */
+    private final PackageGraph primary = new PackageGraph(ids);
+    /** The targets allowed only in the package-info of a super package of each source package, i.e. the secondary ones */
+    private final PackageGraph inherited = new PackageGraph(ids);
+    /** The packages without any <code>@AllowDependenciesOn</code> annotation, indexed by name */
+    private final Map<String, PackageElement> missingDependencies = new LinkedHashMap<>();
+    /** The ids of the {@link #missingDependencies} */
+    private final BitSet missingIds = new BitSet();
 
-    Dependencies(Elements elements) {
+    Dependencies(Elements elements, Policies policies, CompilationGraph compilation, int maxSites) {
         this.elements = elements;
+        this.policies = policies;
+        this.compilation = compilation;
+        this.maxSites = maxSites;
     }
 
     void scan(String source) {
-        DependenciesCollector collector = new DependenciesCollector(source);
-        if (collector.all == null) {
-            missingDependencies.add(elements.getPackageElement(source));
+        if (scanned.containsKey(source))
+            return;
+        Policy policy = policies.of(elements, source);
+        scanned.put(source, policy);
+        compilation.scan(elements, source);
+        if (policy.isMissing()) {
+            missingDependencies.computeIfAbsent(source, elements::getPackageElement);
+            missingIds.set(ids.of(source));
         } else {
-            collector.all.forEach(target -> {
-                Type type = source.equals(target) ? CYCLE : collector.isPrimary(target) ? PRIMARY : SECONDARY;
-                dependencies.add(type.dependency(source, target));
+            policy.all.forEach(target -> {
+                Type type = source.equals(target) ? CYCLE : policy.isPrimary(target) ? PRIMARY : SECONDARY;
+                add(type.dependency(source, target));
+                if (type != CYCLE && !PackagePatterns.isPattern(target)) { // patterns are compiled when they first match
+                    allow(ids.of(source), ids.of(target), type);
+                    if (type == PRIMARY) // inherited ones would make siblings cyclic, when a super package allows them both
+                        compilation.allow(source, target);
+                }
             });
-            collector.invalid.forEach(invalid -> dependencies.add(INVALID.dependency(invalid.getKey(), invalid.getValue())));
+            policy.invalid.forEach(invalid -> add(INVALID.dependency(invalid.getKey(), invalid.getValue())));
         }
     }
 
-    void use(Element element, String source, String target) {
-        dependency(element, source, target).used = true;
+    private Dependency add(Dependency dependency) {
+        Dependency existing = index.computeIfAbsent(dependency.source, source -> new HashMap<>())
+            .putIfAbsent(dependency.target, dependency);
+        if (existing != null)
+            return existing;
+        dependencies.add(dependency);
+        return dependency;
     }
 
-    private Dependency dependency(Element element, String source, String target) {
-        return dependencies.stream()
-            .filter(dependency -> dependency.target.equals(target))
-            .filter(dependency -> dependency.source.equals(source))
-            .findAny()
-            .orElseGet(() -> {
-                Type type = missing(source) ? INFERRED : FORBIDDEN;
-                Dependency dependency = type.dependency(source, target);
-                dependency.element = element;
-                dependencies.add(dependency);
-                return dependency;
-            });
+    private void allow(int sourceId, int targetId, Type type) {
+        if (type == PRIMARY)
+            primary.add(sourceId, targetId);
+        else if (type == SECONDARY)
+            inherited.add(sourceId, targetId);
     }
 
-    private boolean missing(String source) {
-        return missing().anyMatch(packageElement -> packageElement.getQualifiedName().toString().equals(source));
+    /** Would a dependency of the (already scanned) source on the target be allowed, i.e. not forbidden? */
+    boolean allows(String source, String target) {
+        if (allows(ids.of(source), ids.of(target)))
+            return true;
+        Dependency dependency = lookup(source, target);
+        return dependency != null && dependency.type != FORBIDDEN;
     }
 
-    Stream<PackageElement> missing() { return missingDependencies.stream(); }
-
-    Stream<Dependency> stream() { return dependencies.stream(); }
+    /** The bits only; <code>false</code> may also mean: not decided, yet */
+    private boolean allows(int sourceId, int targetId) {
+        return missingIds.get(sourceId) || primary.contains(sourceId, targetId) || inherited.contains(sourceId, targetId);
+    }
 
-    private class DependenciesCollector {
-        Set<String> primary;
-        Set<String> all;
-        List<Entry<String, String>> invalid = new ArrayList<>();
-
-        DependenciesCollector(String source) {
-            scanDependencies(source);
-            if (all != null)
-                primary = new HashSet<>(all);
-            while (source.contains(".")) {
-                source = source.substring(0, source.lastIndexOf('.'));
-                scanDependencies(source);
-            }
+    /**
+     * Use the dependency by some elements in the source file, the first one being <code>element</code>.
+     * Only the ids, counts, and sites are kept, so the caller can release the usage afterwards.
+     *
+     * @return is this a new forbidden or inferred dependency, which reports on <code>element</code>
+     */
+    boolean use(Element element, String source, String target, Usage usage, JavaFileObject file) {
+        int sourceId = ids.of(source);
+        int targetId = ids.of(target);
+        usages.add(sourceId, targetId, usage.count());
+        users.add(sourceId, targetId, usage.elementCount());
+        if (graph.contains(sourceId, targetId) && allows(sourceId, targetId))
+            return false; // the common case: an allowed dependency already marked as used
+        graph.add(sourceId, targetId);
+        compilation.use(source, target, usage, file);
+        Dependency dependency = lookup(source, target);
+        boolean isNew = (dependency == null);
+        if (isNew) {
+            Type type = missing(source) ? INFERRED : FORBIDDEN;
+            dependency = add(type.dependency(source, target));
+            dependency.element = element;
         }
+        dependency.used = true;
+        if (dependency.type == FORBIDDEN && maxSites > 0 && file != null)
+            dependency.addSites(units.of(file), usage, maxSites);
+        return isNew;
+    }
 
-        private void scanDependencies(String source) {
-            PackageElement element = elements.getPackageElement(source);
-            if (element == null)
-                return;
-            AllowDependenciesOn annotation = element.getAnnotation(AllowDependenciesOn.class);
-            if (annotation != null) {
-                if (all == null)
-                    all = new HashSet<>();
-                all.addAll(resolveDependencies(annotation, element));
-            }
-        }
+    /** The file names, lines, and columns of the elements using a forbidden dependency, as far as we recorded them */
+    List<String> sites(Dependency dependency) {
+        List<String> locations = new ArrayList<>();
+        for (int i = 0; i < dependency.siteCount; i++)
+            locations.add(units.location(dependency.sites[2 * i], dependency.sites[2 * i + 1]));
+        return locations;
+    }
 
-        private List<String> resolveDependencies(AllowDependenciesOn annotation, PackageElement source) {
-            List<String> allowed = new ArrayList<>();
-            for (String target : annotation.value()) {
-                if (target.isEmpty())
-                    continue;
-                PackageElement targetElement = elements.getPackageElement(target);
-                if (targetElement == null) {
-                    invalid.add(new SimpleEntry<>(source.getQualifiedName().toString(), target));
-                } else {
-                    allowed.add(targetElement.getQualifiedName().toString());
-                }
+    /** Visit the files, lines, and columns of the elements using a forbidden dependency, as far as we recorded them */
+    void forEachSite(Dependency dependency, CompilationUnits.SiteVisitor visitor) {
+        for (int i = 0; i < dependency.siteCount; i++)
+            units.visit(dependency.sites[2 * i], dependency.sites[2 * i + 1], visitor);
+    }
+
+    /** The number of sites of a forbidden dependency we recorded */
+    int siteCount(Dependency dependency) { return dependency.siteCount; }
+
+    /** The number of sites of a forbidden dependency we did not record */
+    int moreSites(Dependency dependency) { return dependency.moreSites; }
+
+    /** How often the types in the source package reference the target package */
+    int usages(String source, String target) { return usages.get(ids.of(source), ids.of(target)); }
+
+    /** How many elements of the types in the source package use the target package */
+    int users(String source, String target) { return users.get(ids.of(source), ids.of(target)); }
+
+    /** Visit the used edges with their (concrete) target and the dependency they are allowed, forbidden, etc. by */
+    void forEachUsage(UsageVisitor visitor) {
+        for (int sourceId = 0; sourceId < graph.size(); sourceId++) {
+            BitSet targets = graph.targets(sourceId);
+            for (int targetId = targets.nextSetBit(0); targetId >= 0; targetId = targets.nextSetBit(targetId + 1)) {
+                String source = ids.name(sourceId);
+                String target = ids.name(targetId);
+                visitor.visit(index.get(source).get(target), target, usages.get(sourceId, targetId));
             }
-            return allowed;
         }
+    }
+
+    interface UsageVisitor {
+        void visit(Dependency dependency, String target, int count);
+    }
+
+    /** Visit the used edges with their (concrete) target, and then the dependencies that are not used */
+    void forEachEdge(EdgeVisitor visitor) {
+        forEachUsage((dependency, target, count) -> visitor.visit(dependency.source, target, dependency.type, true, count));
+        for (Dependency dependency : dependencies)
+            if (!dependency.used)
+                visitor.visit(dependency.source, dependency.target, dependency.type, false, 0);
+    }
+
+    interface EdgeVisitor {
+        void visit(String source, String target, Type type, boolean used, int count);
+    }
+
+    /** @return the dependency of the source on the target, or <code>null</code> if there is none, yet */
+    private Dependency lookup(String source, String target) {
+        Map<String, Dependency> targets = index.get(source);
+        Dependency dependency = (targets == null) ? null : targets.get(target);
+        return (dependency == null) ? matchPattern(source, target) : dependency;
+    }
 
-        boolean isPrimary(String target) { return primary != null && primary.contains(target); }
+    /** Find the dependency on an allowed wildcard pattern and remember it for the concrete target, also in the bits */
+    private Dependency matchPattern(String source, String target) {
+        Policy policy = scanned.get(source);
+        String pattern = (policy == null) ? null : policy.match(target);
+        if (pattern == null)
+            return null;
+        Map<String, Dependency> targets = index.get(source);
+        Dependency dependency = targets.get(pattern);
+        targets.put(target, dependency);
+        allow(ids.of(source), ids.of(target), dependency.type);
+        return dependency;
     }
+
+    /** Has the (already scanned) source package no <code>@AllowDependenciesOn</code> annotation, so all of its dependencies are inferred? */
+    boolean missing(String source) { return missingDependencies.containsKey(source); }
+
+    Stream<PackageElement> missing() { return missingDependencies.values().stream(); }
+
+    /** The targets of the inferred dependencies of a source package, looked up in the index, not in all dependencies */
+    Stream<String> inferredTargets(String source) {
+        Map<String, Dependency> targets = index.get(source);
+        return (targets == null) ? Stream.empty() : targets.values().stream()
+            .filter(dependency -> dependency.type == INFERRED)
+            .map(dependency -> dependency.target);
+    }
+
+    Stream<Dependency> stream() { return dependencies.stream(); }
 }
@@ -1,19 +1,17 @@
 package com.github.t1.pdap;
 
+import com.github.t1.pdap.DependencyListener.Kind;
+import com.github.t1.pdap.MethodResolver.ResolvedMethod;
 import com.sun.tools.javac.code.Attribute.Compound;
 import com.sun.tools.javac.code.Symbol;
 import com.sun.tools.javac.code.Symbol.ClassSymbol;
-import com.sun.tools.javac.code.Symbol.MethodSymbol;
-import com.sun.tools.javac.code.Symbol.VarSymbol;
 import com.sun.tools.javac.code.Type;
-import com.sun.tools.javac.code.Type.ArrayType;
 import com.sun.tools.javac.code.Type.ClassType;
-import com.sun.tools.javac.code.Type.TypeVar;
 import com.sun.tools.javac.code.Type.WildcardType;
-import com.sun.tools.javac.model.FilteredMemberList;
 import com.sun.tools.javac.model.JavacElements;
 import com.sun.tools.javac.tree.JCTree;
 import com.sun.tools.javac.tree.JCTree.JCAnnotation;
+import com.sun.tools.javac.tree.JCTree.JCArrayTypeTree;
 import com.sun.tools.javac.tree.JCTree.JCClassDecl;
 import com.sun.tools.javac.tree.JCTree.JCCompilationUnit;
 import com.sun.tools.javac.tree.JCTree.JCExpression;
@@ -28,33 +26,56 @@ import com.sun.tools.javac.tree.JCTree.JCTypeApply;
 import com.sun.tools.javac.tree.JCTree.JCTypeCast;
 import com.sun.tools.javac.tree.JCTree.JCTypeParameter;
 import com.sun.tools.javac.tree.JCTree.JCVariableDecl;
-import com.sun.tools.javac.tree.TreeScanner;
+import com.sun.tools.javac.tree.JCTree.JCWildcard;
+import com.sun.tools.javac.tree.TreeInfo;
 import com.sun.tools.javac.util.List;
 import com.sun.tools.javac.util.Name;
 import com.sun.tools.javac.util.Pair;
 
 import javax.lang.model.element.Element;
-import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
 import javax.lang.model.util.Elements;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
-import java.util.stream.IntStream;
+
+import static com.github.t1.pdap.DependencyListener.Kind.IMPORT;
+import static com.github.t1.pdap.DependencyListener.Kind.INSTANTIATION;
+import static com.github.t1.pdap.DependencyListener.Kind.INVOCATION;
+import static com.github.t1.pdap.DependencyListener.Kind.REFERENCE;
+import static com.github.t1.pdap.DependencyListener.Kind.RETURN_TYPE;
+import static com.github.t1.pdap.DependencyListener.Kind.SUPER_TYPE;
+import static com.github.t1.pdap.DependencyListener.Kind.TYPE_BOUND;
+import static com.github.t1.pdap.DependencyListener.Kind.VARIABLE_TYPE;
+import static java.util.Collections.newSetFromMap;
 
 class DependenciesCollector {
     private final JavacElements elements;
+    private final MethodResolver methods;
+    private final PackageNames packageNames;
+    private final IgnoredPackages ignored;
+    private final DependencyListener listener;
     private final ClassSymbol classSymbol;
     private final JCCompilationUnit compilationUnit;
 
-    /** The imports that could not be found as dependencies */
+    /** The imports that could not be found as dependencies of any type in the compilation unit */
     final Set<String> extraImports = new HashSet<>();
-    /** The dependencies found mapped to the first element that uses it */
-    final Map<String, Element> dependencies = new HashMap<>();
+    /** The dependencies found for each top-level type in the compilation unit, mapped to how it uses them */
+    final Map<TypeElement, Map<String, Usage>> dependencies = new HashMap<>();
+    /** The dependencies of the top-level type currently being scanned */
+    private Map<String, Usage> current;
+    private ClassSymbol currentType;
 
-    DependenciesCollector(Elements elements, Element classElement) {
+    DependenciesCollector(Elements elements, MethodResolver methods, PackageNames packageNames, IgnoredPackages ignored,
+                          DependencyListener listener, Element classElement) {
         this.elements = (JavacElements) elements;
+        this.methods = methods;
+        this.packageNames = packageNames;
+        this.ignored = ignored;
+        this.listener = listener;
         this.classSymbol = (ClassSymbol) classElement;
         this.compilationUnit = compilationUnit();
         collect();
@@ -67,49 +88,108 @@ class DependenciesCollector {
         return tree.snd;
     }
 
+    private ClassSymbol firstType() {
+        for (JCTree tree : compilationUnit.defs)
+            if (tree instanceof JCClassDecl)
+                return ((JCClassDecl) tree).sym;
+        return null;
+    }
+
     private void collect() {
         if (compilationUnit == null)
             return;
-        compilationUnit.accept(new TreeScanner() {
+        ImportIndex imports = new ImportIndex(elements, compilationUnit);
+        ClassSymbol firstType = firstType();
+        compilationUnit.accept(new ChainScanner() {
             private boolean ignoreIdentifiers = false;
-            private Stack<Symbol> currentMember = new Stack<>();
-
-            private Symbol currentMember() { return currentMember.peek(); }
+            /** Are we in an anonymous class, whose members are part of the current member? */
+            private boolean anonymous = false;
+            /** The members being scanned, innermost last; members of local classes may have no symbol, yet */
+            private final ArrayList<Symbol> currentMember = new ArrayList<>();
+            /** The identifiers we already notified the listener about with a more specific kind than a reference */
+            private final Set<JCTree> notified = newSetFromMap(new IdentityHashMap<>());
 
-            private String toString(Symbol symbol) {
-                return (isNullOrEmpty(symbol.owner)) ? symbol.name.toString() : toString(symbol.owner) + "." + symbol.name;
+            /** Mark the identifiers in a type tree as notified */
+            private void notified(JCTree type) {
+                if (type instanceof JCIdent) {
+                    notified.add(type);
+                } else if (type instanceof JCFieldAccess) {
+                    notified.add(type);
+                    notified(((JCFieldAccess) type).selected);
+                } else if (type instanceof JCTypeApply) {
+                    notified(((JCTypeApply) type).clazz);
+                    for (JCExpression argument : ((JCTypeApply) type).arguments)
+                        notified(argument);
+                } else if (type instanceof JCWildcard) {
+                    notified(((JCWildcard) type).inner);
+                } else if (type instanceof JCArrayTypeTree) {
+                    notified(((JCArrayTypeTree) type).elemtype);
+                }
             }
 
+            private Symbol currentMember() { return currentMember.isEmpty() ? null : currentMember.get(currentMember.size() - 1); }
+
             @Override public void visitImport(JCImport tree) {
                 JCFieldAccess fieldAccess = (JCFieldAccess) tree.getQualifiedIdentifier();
-                if (tree.staticImport)
-                    fieldAccess = (JCFieldAccess) fieldAccess.selected;
-                extraImports.add(toString(fieldAccess.sym.owner));
+                if (!tree.staticImport && fieldAccess.name.contentEquals("*")) {
+                    Symbol selected = TreeInfo.symbol(fieldAccess.selected);
+                    if (selected != null)
+                        addImport(packageNames.of(selected));
+                } else {
+                    if (tree.staticImport)
+                        fieldAccess = (JCFieldAccess) fieldAccess.selected;
+                    addImport(packageNames.of(fieldAccess.sym));
+                }
                 super.visitImport(tree);
             }
 
+            private void addImport(String name) {
+                if (firstType != null)
+                    listener.dependency(firstType, name, firstType, IMPORT);
+                if (!ignored.matches(name))
+                    extraImports.add(name);
+            }
+
             @Override public void visitClassDef(JCClassDecl classDecl) {
+                if (current == null) {
+                    current = dependencies.computeIfAbsent(classDecl.sym, type -> new HashMap<>());
+                    currentType = classDecl.sym;
+                    scanClassDef(classDecl);
+                    current = null;
+                    currentType = null;
+                } else {
+                    boolean outerAnonymous = anonymous;
+                    anonymous = classDecl.name.isEmpty();
+                    scanClassDef(classDecl);
+                    anonymous = outerAnonymous;
+                }
+            }
+
+            private void scanClassDef(JCClassDecl classDecl) {
                 removeAnnotationImports(classDecl.sym);
                 if (classDecl.getExtendsClause() != null)
-                    addType(classDecl.getExtendsClause(), classDecl.sym);
+                    addType(classDecl.getExtendsClause(), classDecl.sym, SUPER_TYPE);
                 for (JCExpression implementsClause : classDecl.getImplementsClause())
-                    addType(implementsClause, classDecl.sym);
+                    addType(implementsClause, classDecl.sym, SUPER_TYPE);
                 for (JCTypeParameter typeParameter : classDecl.getTypeParameters())
-                    for (JCExpression bound : typeParameter.getBounds())
-                        addOwner(((JCIdent) bound).sym, classDecl.sym);
+                    for (JCExpression bound : typeParameter.getBounds()) {
+                        addOwner(((JCIdent) bound).sym, classDecl.sym, TYPE_BOUND, bound);
+                        notified(bound);
+                    }
                 super.visitClassDef(classDecl);
             }
 
-            /** field */
+            /** field or parameter; the fields of anonymous classes are part of the current member */
             @Override public void visitVarDef(JCVariableDecl variable) {
+                boolean member = !anonymous && variable.sym != null;
                 removeAnnotationImports(variable.sym);
-                addType(variable.getType(), variable.sym);
-                if (variable.sym == null) {
+                addType(variable.getType(), member ? variable.sym : currentMember(), VARIABLE_TYPE);
+                if (!member) {
                     super.visitVarDef(variable);
                 } else {
-                    this.currentMember.push(variable.sym);
+                    this.currentMember.add(variable.sym);
                     super.visitVarDef(variable);
-                    this.currentMember.pop();
+                    this.currentMember.remove(this.currentMember.size() - 1);
                 }
             }
 
@@ -117,7 +197,7 @@ class DependenciesCollector {
                 if (!currentMember.isEmpty() && !ignoreIdentifiers) {
                     ClassSymbol targetSymbol = resolve(identifier.getName());
                     if (targetSymbol != null) {
-                        addOwner(targetSymbol, currentMember());
+                        addOwner(targetSymbol, currentMember(), notified.contains(identifier) ? null : REFERENCE, identifier);
                     }
                 }
                 super.visitIdent(identifier);
@@ -130,38 +210,41 @@ class DependenciesCollector {
             }
 
             @Override public void visitMethodDef(JCMethodDecl method) {
+                Symbol member = anonymous ? currentMember() : method.sym;
                 JCTree returnType = method.getReturnType();
                 if (returnType != null) {
                     if (returnType instanceof JCFieldAccess) {
-                        addOwner(((JCFieldAccess) returnType).sym, method.sym);
+                        addOwner(((JCFieldAccess) returnType).sym, member, RETURN_TYPE, returnType);
                     } else if (returnType instanceof JCTypeApply) {
                         for (JCExpression typeArgument : ((JCTypeApply) returnType).getTypeArguments()) {
-                            addOwner(((JCIdent) typeArgument).sym, method.sym);
+                            addOwner(((JCIdent) typeArgument).sym, member, RETURN_TYPE, typeArgument);
                         }
                     } else if (returnType instanceof JCIdent) {
                         JCIdent identifier = (JCIdent) returnType;
                         ClassSymbol targetSymbol = resolve(identifier.getName());
                         if (targetSymbol != null) {
-                            addOwner(targetSymbol, method.sym);
+                            addOwner(targetSymbol, member, RETURN_TYPE, identifier);
                         }
                     }
+                    notified(returnType);
                 }
-                this.currentMember.push(method.sym);
+                this.currentMember.add(member);
                 super.visitMethodDef(method);
-                this.currentMember.pop();
+                this.currentMember.remove(this.currentMember.size() - 1);
             }
 
             @Override public void visitNewClass(JCNewClass tree) {
                 if (tree.getIdentifier() instanceof JCFieldAccess) {
                     JCFieldAccess identifier = (JCFieldAccess) tree.getIdentifier();
-                    addName(((JCIdent) identifier.selected).name.toString(), currentMember());
+                    addName(((JCIdent) identifier.selected).name.toString(), currentMember(), INSTANTIATION, identifier);
                 } else if (tree.getIdentifier() instanceof JCIdent) {
                     JCIdent identifier = (JCIdent) tree.getIdentifier();
                     ClassSymbol targetSymbol = resolve(identifier.getName());
                     if (targetSymbol != null) {
-                        addOwner(targetSymbol, currentMember());
+                        addOwner(targetSymbol, currentMember(), INSTANTIATION, identifier);
                     }
                 }
+                notified(tree.getIdentifier());
                 super.visitNewClass(tree);
             }
 
@@ -173,11 +256,9 @@ class DependenciesCollector {
                         JCNewClass selected = (JCNewClass) fieldAccess.selected;
                         JCIdent identifier = (JCIdent) selected.getIdentifier();
                         ClassSymbol targetSymbol = resolve(identifier.name);
-                        MethodSymbol method = findMethod(targetSymbol, fieldAccess.name, methodInvocation.getArguments());
-                        if (method != null && method.getReturnType() != null) {
-                            PackageElement packageElement = elements.getPackageOf(method.getReturnType().tsym);
-                            addName(packageElement.getQualifiedName().toString(), currentMember());
-                        }
+                        ResolvedMethod method = methods.resolve(targetSymbol, fieldAccess.name, argumentTypes(methodInvocation.getArguments()));
+                        if (method != null && method.returnTypePackageName != null)
+                            addName(method.returnTypePackageName, currentMember(), INVOCATION, methodInvocation);
                     } else if (fieldAccess.selected instanceof JCIdent) {
                         JCIdent identifier = (JCIdent) fieldAccess.selected;
                         ClassSymbol targetSymbol = resolve(identifier.name);
@@ -196,132 +277,86 @@ class DependenciesCollector {
             private void removeAnnotationImports(Symbol symbol) {
                 if (symbol != null && symbol.getMetadata() != null)
                     for (Compound attribute : symbol.getMetadata().getDeclarationAttributes())
-                        extraImports.remove(toString(((ClassType) attribute.getAnnotationType()).tsym.owner));
+                        extraImports.remove(packageNames.of(((ClassType) attribute.getAnnotationType()).tsym));
             }
 
-            private void addType(JCTree type, Element element) {
+            private void addType(JCTree type, Element element, Kind kind) {
+                notified(type);
                 if (type instanceof JCIdent) {
                     JCIdent ident = (JCIdent) type;
                     if (ident.sym != null) {
-                        dependencies.putIfAbsent(toString(ident.sym.owner), element);
+                        addName(packageNames.of(ident.sym), element, kind, type);
                     }
                 } else if (type instanceof JCFieldAccess) {
                     JCFieldAccess fieldAccess = (JCFieldAccess) type;
                     if (fieldAccess.sym == null) {
-                        addName(((JCIdent) fieldAccess.selected).getName().toString(), element);
+                        addName(((JCIdent) fieldAccess.selected).getName().toString(), element, kind, type);
                     } else {
-                        addOwner(fieldAccess.sym, fieldAccess.sym);
+                        addOwner(fieldAccess.sym, element, kind, type);
                     }
                 } else if (type instanceof JCTypeApply) { // external type
                     JCTypeApply typeApply = (JCTypeApply) type;
-                    addOwner(typeApply.type.tsym, element);
+                    addOwner(typeApply.type.tsym, element, kind, type);
                     for (Type typeParameter : typeApply.type.getTypeArguments()) {
                         if (typeParameter instanceof ClassType)
-                            addOwner(((ClassType) typeParameter).tsym, element);
+                            addOwner(((ClassType) typeParameter).tsym, element, kind, type);
                         if (typeParameter instanceof WildcardType) {
                             if (typeParameter.isExtendsBound() && ((WildcardType) typeParameter).getExtendsBound() != null)
-                                addOwner(((WildcardType) typeParameter).getExtendsBound().tsym, element);
+                                addOwner(((WildcardType) typeParameter).getExtendsBound().tsym, element, kind, type);
                             if (typeParameter.isSuperBound() && ((WildcardType) typeParameter).getSuperBound() != null)
-                                addOwner(((WildcardType) typeParameter).getSuperBound().tsym, element);
+                                addOwner(((WildcardType) typeParameter).getSuperBound().tsym, element, kind, type);
                         }
                     }
                 }
             }
 
-            private void addOwner(Symbol symbol, Element element) { addName(toString(symbol.owner), element); }
-
-            private void addName(String name, Element element) { dependencies.putIfAbsent(name, element); }
-
-            private boolean isNullOrEmpty(Symbol symbol) { return symbol == null || symbol.name.isEmpty(); }
-
-            private void addMethodOwner(JCMethodInvocation methodInvocation, JCFieldAccess fieldAccess, ClassSymbol targetSymbol) {
-                MethodSymbol method = findMethod(targetSymbol, fieldAccess.name, methodInvocation.getArguments());
-                if (method != null) {
-                    PackageElement packageElement = elements.getPackageOf(method);
-                    addName(packageElement.getQualifiedName().toString(), currentMember());
-                }
+            private void addOwner(Symbol symbol, Element element, Kind kind, JCTree reference) {
+                addName(packageNames.of(symbol), element, kind, reference);
             }
 
-            private MethodSymbol findMethod(ClassSymbol typeSymbol, Name methodName, List<JCExpression> arguments) {
-                FilteredMemberList members = elements.getAllMembers(typeSymbol);
-                for (Symbol member : members) {
-                    if (member instanceof MethodSymbol) {
-                        MethodSymbol method = (MethodSymbol) member;
-                        if (method.name.contentEquals(methodName) && argMatch(arguments, method.getParameters(), method.isVarArgs())) {
-                            return method;
-                        }
-                    }
-                }
-                return null;
+            /**
+             * @param kind how the element uses the package, or <code>null</code> if we already notified the listener
+             * @param reference the tree referencing the package, for the position of the site
+             */
+            private void addName(String name, Element element, Kind kind, JCTree reference) {
+                if (kind != null)
+                    listener.dependency(currentType, name, (element == null) ? currentType : element, kind);
+                if (!ignored.matches(name))
+                    Usage.add(current, name, element, TreeInfo.getStartPos(reference));
             }
 
-            private boolean argMatch(List<JCExpression> actuals, List<VarSymbol> expecteds, boolean varArgs) {
-                if (expecteds.size() == actuals.size() || varArgs && actuals.size() >= expecteds.size() - 1) {
-                    return IntStream.range(0, actuals.size()).allMatch(i -> {
-                        boolean isLastExpected = i >= expecteds.size() - 1;
-                        int expectedIndex = isLastExpected ? expecteds.size() - 1 : i;
-                        return argMatch(expecteds.get(expectedIndex).type, actuals.get(i), varArgs && isLastExpected);
-                    });
-                } else {
-                    return false;
-                }
+            private void addMethodOwner(JCMethodInvocation methodInvocation, JCFieldAccess fieldAccess, ClassSymbol targetSymbol) {
+                ResolvedMethod method = methods.resolve(targetSymbol, fieldAccess.name, argumentTypes(methodInvocation.getArguments()));
+                if (method != null)
+                    addName(method.packageName, currentMember(), INVOCATION, methodInvocation);
             }
 
-            private boolean argMatch(Type expected, JCExpression actual, boolean varArgs) {
-                if (varArgs)
-                    expected = ((ArrayType) expected).elemtype;
-                if (expected instanceof TypeVar)
-                    expected = ((TypeVar) expected).bound;
-                String expectedString = expected.isPrimitive() ? boxed(expected).getName() : expected.asElement().toString();
-                String actualString = (actual instanceof JCLiteral) ? ((JCLiteral) actual).value.getClass().getName()
-                    : (actual instanceof JCTypeCast) ? resolve(((JCIdent) ((JCTypeCast) actual).getType()).name).className()
-                    : resolve(((JCIdent) ((JCNewClass) actual).getIdentifier()).name).className();
-                return expectedString.equals(actualString);
+            private String[] argumentTypes(List<JCExpression> arguments) {
+                String[] types = new String[arguments.size()];
+                int i = 0;
+                for (JCExpression argument : arguments)
+                    types[i++] = argumentType(argument);
+                return types;
             }
 
-            private Class<?> boxed(Type type) {
-                switch (type.getTag()) {
-                    case BYTE:
-                        return Byte.class;
-                    case CHAR:
-                        return Character.class;
-                    case SHORT:
-                        return Short.class;
-                    case LONG:
-                        return Long.class;
-                    case FLOAT:
-                        return Float.class;
-                    case INT:
-                        return Integer.class;
-                    case DOUBLE:
-                        return Double.class;
-                    case BOOLEAN:
-                        return Boolean.class;
-                    case VOID:
-                        return Void.class;
+            /** @return the fully qualified name of the type of the argument, or <code>null</code> if we can't find out */
+            private String argumentType(JCExpression argument) {
+                if (argument instanceof JCLiteral) {
+                    Object value = ((JCLiteral) argument).value;
+                    return (value == null) ? null : value.getClass().getName();
                 }
-                throw new UnsupportedOperationException("unboxable type " + type);
+                JCTree type = (argument instanceof JCTypeCast) ? ((JCTypeCast) argument).getType()
+                    : (argument instanceof JCNewClass) ? ((JCNewClass) argument).getIdentifier()
+                    : null;
+                ClassSymbol symbol = (type instanceof JCIdent) ? resolve(((JCIdent) type).name) : null;
+                return (symbol == null) ? null : symbol.className();
             }
 
-            private ClassSymbol resolve(Name name) {
-                return compilationUnit.getImports().stream()
-                    .filter(i -> ((JCFieldAccess) i.getQualifiedIdentifier()).name.contentEquals(name))
-                    .map(i -> (ClassSymbol) (
-                            i.isStatic()
-                                ? ((JCFieldAccess) ((JCFieldAccess) i.getQualifiedIdentifier()).selected).sym
-                                : ((JCFieldAccess) i.getQualifiedIdentifier()).sym
-                        )
-                    )
-                    .findAny().orElseGet(() -> {
-                        ClassSymbol typeElement = elements.getTypeElement(name);
-                        if (typeElement == null)
-                            typeElement = elements.getTypeElement("java.lang." + name);
-                        return typeElement;
-                    });
-            }
+            private ClassSymbol resolve(Name name) { return imports.resolve(name); }
         });
-        dependencies.remove(classSymbol.packge().name.toString());
-        dependencies.remove("java.lang");
-        extraImports.removeAll(dependencies.keySet());
+        for (Map<String, Usage> typeDependencies : dependencies.values()) {
+            typeDependencies.remove(packageNames.of(classSymbol));
+            extraImports.removeAll(typeDependencies.keySet());
+        }
     }
 }
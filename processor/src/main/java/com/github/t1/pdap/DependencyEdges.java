@@ -0,0 +1,65 @@
+package com.github.t1.pdap;
+
+import com.github.t1.pdap.Dependencies.Dependency;
+import com.github.t1.pdap.Dependencies.Dependency.Type;
+import com.github.t1.pdap.Dependencies.EdgeVisitor;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The edges of the dependency graph merged over all processing rounds, so the processor can export them once at the end:
+ * the types of one package can be compiled in several rounds, e.g. generated ones, but each round has its own {@link Dependencies}.
+ * We add up the usages of an edge, and a dependency is unused only if no round used it.
+ * It holds only the package names, so it's bounded by the number of edges, not of the types.
+ */
+class DependencyEdges {
+    private static class Edge {
+        private final Type type;
+        private int usages = 0;
+
+        private Edge(Type type) { this.type = type; }
+    }
+
+    /** The used edges with their concrete targets, by source and target package */
+    private final Map<String, Map<String, Edge>> used = new LinkedHashMap<>();
+    /** The targets of the dependencies used, which may be patterns, by source package */
+    private final Map<String, Set<String>> usedDependencies = new HashMap<>();
+    /** The dependencies no round has used so far, by source and target package */
+    private final Map<String, Map<String, Edge>> unused = new LinkedHashMap<>();
+
+    void add(Dependencies dependencies) {
+        dependencies.forEachUsage((dependency, target, count) -> {
+            edge(used, dependency.source, target, dependency.type).usages += count;
+            if (usedDependencies.computeIfAbsent(dependency.source, source -> new HashSet<>()).add(dependency.target))
+                remove(unused, dependency.source, dependency.target);
+        });
+        dependencies.stream()
+            .filter(dependency -> !dependency.used && !isUsed(dependency))
+            .forEach(dependency -> edge(unused, dependency.source, dependency.target, dependency.type));
+    }
+
+    private boolean isUsed(Dependency dependency) {
+        Set<String> targets = usedDependencies.get(dependency.source);
+        return targets != null && targets.contains(dependency.target);
+    }
+
+    private static Edge edge(Map<String, Map<String, Edge>> edges, String source, String target, Type type) {
+        return edges.computeIfAbsent(source, s -> new LinkedHashMap<>()).computeIfAbsent(target, t -> new Edge(type));
+    }
+
+    private static void remove(Map<String, Map<String, Edge>> edges, String source, String target) {
+        Map<String, Edge> targets = edges.get(source);
+        if (targets != null)
+            targets.remove(target);
+    }
+
+    /** Visit the used edges with their (concrete) target, and then the dependencies that are not used; like {@link Dependencies#forEachEdge} */
+    void forEachEdge(EdgeVisitor visitor) {
+        used.forEach((source, targets) -> targets.forEach((target, edge) -> visitor.visit(source, target, edge.type, true, edge.usages)));
+        unused.forEach((source, targets) -> targets.forEach((target, edge) -> visitor.visit(source, target, edge.type, false, 0)));
+    }
+}
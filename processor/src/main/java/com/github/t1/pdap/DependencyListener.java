@@ -0,0 +1,56 @@
+package com.github.t1.pdap;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+
+/**
+ * A service provider interface for additional architecture rules, so they don't have to walk the trees again.
+ * Implementations are loaded with the {@link java.util.ServiceLoader} from
+ * <code>META-INF/services/com.github.t1.pdap.DependencyListener</code>, and receive every dependency
+ * the annotation processor or the javac plugin finds, including those on ignored packages and on the own package.
+ * <p>
+ * When there are listeners, the annotation processor always scans in depth, i.e. it ignores <code>-Apdap.analysis=adaptive</code>,
+ * so the listeners get all dependencies of the types it analyzes. It doesn't analyze excluded types, and analyzes the
+ * types in packages without a policy only when bootstrapping or exporting the graph.
+ * <p>
+ * Both send the same kinds of events, and the element is always in the source type: the members of anonymous classes
+ * are part of the member they are declared in, and the code the compiler generates, like default constructors
+ * or implicit <code>super()</code> calls, sends no events. The plugin sees the attributed trees, so it can resolve
+ * some invocations the annotation processor can't, e.g. of inherited methods.
+ */
+public interface DependencyListener {
+    /** How an element uses a package */
+    enum Kind {
+        /** An import statement; the element is the first type in the compilation unit */
+        IMPORT,
+        /** A super class or an implemented interface */
+        SUPER_TYPE,
+        /** The bound of a type parameter */
+        TYPE_BOUND,
+        /** The type of a field, parameter, or local variable */
+        VARIABLE_TYPE,
+        /** The return type of a method */
+        RETURN_TYPE,
+        /** Creating an instance of a class with <code>new</code> */
+        INSTANTIATION,
+        /** Invoking a method declared in the package, or returning a type from it */
+        INVOCATION,
+        /** Any other reference to a type, method, or field */
+        REFERENCE
+    }
+
+    /** Called once before the first dependency, e.g. to get the <code>Messager</code> */
+    default void init(ProcessingEnvironment processingEnv) {}
+
+    /**
+     * @param type the top-level type that has the dependency
+     * @param targetPackage the fully qualified name of the package the type depends on
+     * @param element the type, method, field, etc. that uses the target package
+     * @param kind how the element uses the target package
+     */
+    void dependency(TypeElement type, String targetPackage, Element element, Kind kind);
+
+    /** Called once after all dependencies of the compilation have been reported, i.e. after the last processing round */
+    default void finish() {}
+}
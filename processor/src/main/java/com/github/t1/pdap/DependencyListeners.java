@@ -0,0 +1,34 @@
+package com.github.t1.pdap;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+
+/** All {@link DependencyListener}s found by the {@link ServiceLoader}, as one listener */
+class DependencyListeners implements DependencyListener {
+    private final List<DependencyListener> listeners = new ArrayList<>();
+
+    DependencyListeners(ClassLoader classLoader) {
+        ServiceLoader.load(DependencyListener.class, classLoader).forEach(listeners::add);
+    }
+
+    boolean isEmpty() { return listeners.isEmpty(); }
+
+    @Override public void init(ProcessingEnvironment processingEnv) {
+        for (DependencyListener listener : listeners)
+            listener.init(processingEnv);
+    }
+
+    @Override public void dependency(TypeElement type, String targetPackage, Element element, Kind kind) {
+        for (DependencyListener listener : listeners)
+            listener.dependency(type, targetPackage, element, kind);
+    }
+
+    @Override public void finish() {
+        for (DependencyListener listener : listeners)
+            listener.finish();
+    }
+}
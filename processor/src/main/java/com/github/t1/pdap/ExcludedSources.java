@@ -0,0 +1,92 @@
+package com.github.t1.pdap;
+
+import com.sun.tools.javac.code.Symbol.ClassSymbol;
+
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.TypeElement;
+import java.net.URI;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The types we don't check at all: types annotated as <code>@Generated</code> (by any annotation with that simple name,
+ * e.g. <code>javax.annotation.Generated</code> or <code>javax.annotation.processing.Generated</code>),
+ * types in packages matching one of the package patterns, e.g. <code>com.example.api+</code>,
+ * and types in source files matching one of the path globs, e.g. <code>**&#47;generated-sources/**</code>.
+ * <p>
+ * The patterns are compiled only once, and none of the checks needs the tree of the type.
+ */
+class ExcludedSources {
+    private final boolean generated;
+    /** The package patterns, or <code>null</code> if there are none */
+    private final PackagePatterns packages;
+    private final List<PathMatcher> paths = new ArrayList<>();
+
+    /**
+     * @param generated the option to exclude generated types; anything but <code>false</code> excludes them
+     * @param packages the comma separated list of package patterns, or <code>null</code>
+     * @param paths the comma separated list of path globs, or <code>null</code>
+     */
+    ExcludedSources(String generated, String packages, String paths) {
+        this.generated = !"false".equalsIgnoreCase(generated);
+        PackagePatterns patterns = new PackagePatterns();
+        if (packages != null)
+            for (String pattern : packages.split(","))
+                if (!pattern.trim().isEmpty())
+                    patterns.add(pattern.trim());
+        this.packages = patterns.isEmpty() ? null : patterns;
+        if (paths != null)
+            for (String glob : splitGlobs(paths))
+                this.paths.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+    }
+
+    /** Split at the commas, but not within the braces of a glob group, e.g. <code>*.{java,kt}</code> */
+    private static List<String> splitGlobs(String globs) {
+        List<String> list = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i <= globs.length(); i++) {
+            char c = (i < globs.length()) ? globs.charAt(i) : ',';
+            if (c == '{')
+                depth++;
+            else if (c == '}' && depth > 0)
+                depth--;
+            else if (c == ',' && depth == 0) {
+                String glob = globs.substring(start, i).trim();
+                if (!glob.isEmpty())
+                    list.add(glob);
+                start = i + 1;
+            }
+        }
+        return list;
+    }
+
+    boolean matches(TypeElement type, String packageName) {
+        return generated && isGenerated(type)
+            || packages != null && packages.match(packageName) != null
+            || !paths.isEmpty() && matchesPath(type);
+    }
+
+    private boolean isGenerated(TypeElement type) {
+        for (AnnotationMirror annotation : type.getAnnotationMirrors())
+            if (annotation.getAnnotationType().asElement().getSimpleName().contentEquals("Generated"))
+                return true;
+        return false;
+    }
+
+    private boolean matchesPath(TypeElement type) {
+        ClassSymbol symbol = (ClassSymbol) type;
+        if (symbol.sourcefile == null)
+            return false;
+        URI uri = symbol.sourcefile.toUri();
+        if (uri.getPath() == null)
+            return false;
+        for (PathMatcher path : paths)
+            if (path.matches(Paths.get(uri.getPath())))
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,15 @@
+package com.github.t1.pdap;
+
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.PACKAGE;
+
+/**
+ * The annotated package and its sub packages must not depend on these packages, neither directly nor via other packages,
+ * e.g. <code>@ForbidTransitiveDependenciesOn("persistence.internal+")</code>. The same wildcards as in
+ * {@link AllowDependenciesOn} work here, too.
+ */
+@Target(PACKAGE)
+public @interface ForbidTransitiveDependenciesOn {
+    String[] value();
+}
@@ -0,0 +1,157 @@
+package com.github.t1.pdap;
+
+import com.github.t1.pdap.Dependencies.Dependency.Type;
+
+import javax.annotation.processing.Filer;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+
+/**
+ * Streams the dependency graph to a file, one edge at a time, so even huge graphs need no document in memory.
+ * Each edge has the source and target package, the {@link Type} of the dependency, if it's used, and by how many elements.
+ */
+abstract class GraphExport implements Closeable {
+    enum Format {
+        JSON, DOT, GRAPHML;
+
+        /** The name of the resource in the class output, e.g. <code>META-INF/pdap/dependencies.json</code> */
+        String fileName() { return "META-INF/pdap/dependencies." + name().toLowerCase(Locale.ROOT); }
+    }
+
+    static GraphExport create(Filer filer, Format format) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+            filer.createResource(CLASS_OUTPUT, "", format.fileName()).openOutputStream(), UTF_8));
+        switch (format) {
+            case JSON:
+                return new JsonExport(writer);
+            case DOT:
+                return new DotExport(writer);
+            case GRAPHML:
+                return new GraphMlExport(writer);
+        }
+        throw new UnsupportedOperationException("unknown format " + format);
+    }
+
+    private final Writer out;
+
+    private GraphExport(Writer out) { this.out = out; }
+
+    /** Write all edges of the dependencies */
+    void export(Dependencies dependencies) { dependencies.forEachEdge(this::edge); }
+
+    /** Write all edges merged over the processing rounds */
+    void export(DependencyEdges edges) { edges.forEachEdge(this::edge); }
+
+    abstract void edge(String source, String target, Type type, boolean used, int usages);
+
+    void write(String string) {
+        try {
+            out.write(string);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override public void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static String name(Type type) { return type.name().toLowerCase(Locale.ROOT); }
+
+    /** <code>{"dependencies":[{"source":"a","target":"b","type":"primary","used":true,"usages":3},...]}</code> */
+    private static class JsonExport extends GraphExport {
+        private final JsonWriter json;
+
+        private JsonExport(Writer out) {
+            super(out);
+            this.json = new JsonWriter(out).beginObject().name("dependencies").beginArray();
+        }
+
+        @Override void edge(String source, String target, Type type, boolean used, int usages) {
+            json.beginObject()
+                .property("source", source)
+                .property("target", target)
+                .property("type", name(type))
+                .property("used", used)
+                .property("usages", usages)
+                .endObject();
+        }
+
+        @Override public void close() {
+            json.endArray().endObject().close();
+        }
+    }
+
+    /** A Graphviz <code>digraph</code>; unused dependencies are dashed, forbidden ones red */
+    private static class DotExport extends GraphExport {
+        private DotExport(Writer out) {
+            super(out);
+            write("digraph dependencies {\n");
+        }
+
+        @Override void edge(String source, String target, Type type, boolean used, int usages) {
+            write("  " + quote(source) + " -> " + quote(target) + " [type=" + quote(name(type))
+                + ", usages=" + usages + (used ? "" : ", style=dashed") + ((type == Type.FORBIDDEN) ? ", color=red" : "") + "];\n");
+        }
+
+        private static String quote(String string) { return "\"" + string.replace("\\", "\\\\").replace("\"", "\\\"") + "\""; }
+
+        @Override public void close() {
+            write("}\n");
+            super.close();
+        }
+    }
+
+    /** GraphML with the attributes of the edges as <code>data</code>; each node is declared before its first edge */
+    private static class GraphMlExport extends GraphExport {
+        /** Only the package names, so this is bounded by the number of packages, not of the edges */
+        private final Set<String> nodes = new HashSet<>();
+
+        private GraphMlExport(Writer out) {
+            super(out);
+            write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\">\n"
+                + "  <key id=\"type\" for=\"edge\" attr.name=\"type\" attr.type=\"string\"/>\n"
+                + "  <key id=\"used\" for=\"edge\" attr.name=\"used\" attr.type=\"boolean\"/>\n"
+                + "  <key id=\"usages\" for=\"edge\" attr.name=\"usages\" attr.type=\"int\"/>\n"
+                + "  <graph id=\"dependencies\" edgedefault=\"directed\">\n");
+        }
+
+        @Override void edge(String source, String target, Type type, boolean used, int usages) {
+            node(source);
+            node(target);
+            write("    <edge source=\"" + escape(source) + "\" target=\"" + escape(target) + "\">"
+                + "<data key=\"type\">" + name(type) + "</data>"
+                + "<data key=\"used\">" + used + "</data>"
+                + "<data key=\"usages\">" + usages + "</data></edge>\n");
+        }
+
+        private void node(String name) {
+            if (nodes.add(name))
+                write("    <node id=\"" + escape(name) + "\"/>\n");
+        }
+
+        private static String escape(String string) {
+            return string.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+        }
+
+        @Override public void close() {
+            write("  </graph>\n</graphml>\n");
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.t1.pdap;
+
+import java.util.List;
+
+import static java.util.Arrays.asList;
+
+/**
+ * The packages that are never a dependency: <code>java.lang</code> and the packages starting with one of the
+ * configured prefixes, e.g. <code>lombok,org.slf4j</code>. The keyword {@link #JDK} stands for all packages of the JDK.
+ * A prefix matches whole name segments only, e.g. <code>java</code> matches <code>java.util</code> but not <code>javafoo</code>.
+ */
+class IgnoredPackages {
+    /** The option keyword for all packages of the JDK */
+    static final String JDK = "JDK";
+
+    /**
+     * The prefixes of the JDK's own packages; only its own <code>com.sun</code> roots,
+     * as <code>com.sun.jersey</code>, <code>com.sun.mail</code>, etc. are real dependencies
+     */
+    private static final List<String> JDK_PREFIXES = asList("java", "javax.accessibility", "javax.activation",
+        "javax.annotation.processing", "javax.crypto", "javax.imageio", "javax.lang.model", "javax.management",
+        "javax.naming", "javax.net", "javax.print", "javax.rmi", "javax.script", "javax.security", "javax.sound",
+        "javax.sql", "javax.swing", "javax.tools", "javax.transaction.xa", "javax.xml", "jdk", "sun",
+        "com.sun.accessibility", "com.sun.beans", "com.sun.corba", "com.sun.crypto", "com.sun.image", "com.sun.imageio",
+        "com.sun.istack.internal", "com.sun.jarsigner", "com.sun.java", "com.sun.javadoc", "com.sun.jdi", "com.sun.jmx",
+        "com.sun.jndi", "com.sun.management", "com.sun.media.sound", "com.sun.naming", "com.sun.net", "com.sun.nio",
+        "com.sun.org.apache", "com.sun.rmi", "com.sun.rowset", "com.sun.security", "com.sun.source", "com.sun.swing",
+        "com.sun.tools", "com.sun.tracing", "com.sun.xml.internal",
+        "org.ietf.jgss", "org.omg", "org.w3c.dom", "org.xml.sax");
+
+    /** The prefixes as patterns matching the package and all of its subpackages, or <code>null</code> if there are none */
+    private final PackagePatterns prefixes;
+
+    /** @param option the comma separated list of prefixes, or <code>null</code> */
+    IgnoredPackages(String option) {
+        PackagePatterns prefixes = new PackagePatterns();
+        if (option != null)
+            for (String prefix : option.split(",")) {
+                prefix = prefix.trim();
+                if (JDK.equals(prefix))
+                    JDK_PREFIXES.forEach(jdkPrefix -> prefixes.add(jdkPrefix + "+"));
+                else if (!prefix.isEmpty())
+                    prefixes.add(prefix + "+");
+            }
+        this.prefixes = prefixes.isEmpty() ? null : prefixes;
+    }
+
+    boolean matches(String packageName) {
+        return "java.lang".equals(packageName) || prefixes != null && prefixes.match(packageName) != null;
+    }
+}
@@ -0,0 +1,167 @@
+package com.github.t1.pdap;
+
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.code.Symbol.ClassSymbol;
+import com.sun.tools.javac.model.JavacElements;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.JCTree.JCAnnotation;
+import com.sun.tools.javac.tree.JCTree.JCArrayTypeTree;
+import com.sun.tools.javac.tree.JCTree.JCClassDecl;
+import com.sun.tools.javac.tree.JCTree.JCCompilationUnit;
+import com.sun.tools.javac.tree.JCTree.JCExpression;
+import com.sun.tools.javac.tree.JCTree.JCFieldAccess;
+import com.sun.tools.javac.tree.JCTree.JCIdent;
+import com.sun.tools.javac.tree.JCTree.JCImport;
+import com.sun.tools.javac.tree.JCTree.JCMethodInvocation;
+import com.sun.tools.javac.tree.JCTree.JCNewClass;
+import com.sun.tools.javac.tree.JCTree.JCTypeApply;
+import com.sun.tools.javac.tree.JCTree.JCVariableDecl;
+import com.sun.tools.javac.tree.JCTree.JCWildcard;
+import com.sun.tools.javac.tree.TreeInfo;
+import com.sun.tools.javac.util.Pair;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The cheap tier of the adaptive analysis: collects the dependencies of a compilation unit only from its imports
+ * and the declarations of its types, i.e. <code>extends</code>, <code>implements</code>, and field types,
+ * without resolving any method invocations. Every import counts as a dependency of the first type in the unit.
+ * <p>
+ * It's not {@link #complete}, if the unit contains anything only the {@link DependenciesCollector} can resolve,
+ * i.e. method invocations on a type or on a <code>new</code> expression, or qualified type names.
+ */
+class ImportDependenciesCollector {
+    private final JavacElements elements;
+    private final PackageNames packageNames;
+    private final IgnoredPackages ignored;
+
+    /** The dependencies found for each top-level type in the compilation unit, mapped to how it uses them */
+    final Map<TypeElement, Map<String, Usage>> dependencies = new HashMap<>();
+    /** The dependencies found are all there is, so there's no need to scan the compilation unit in depth */
+    boolean complete = true;
+
+    ImportDependenciesCollector(Elements elements, PackageNames packageNames, IgnoredPackages ignored, Element classElement) {
+        this.elements = (JavacElements) elements;
+        this.packageNames = packageNames;
+        this.ignored = ignored;
+        Pair<JCTree, JCCompilationUnit> tree = this.elements.getTreeAndTopLevel(classElement, null, null);
+        if (tree != null && tree.snd != null)
+            collect(tree.snd, packageNames.of((ClassSymbol) classElement));
+    }
+
+    private void collect(JCCompilationUnit compilationUnit, String ownPackage) {
+        ImportIndex imports = new ImportIndex(elements, compilationUnit);
+        Map<String, Usage> first = null;
+        for (JCTree tree : compilationUnit.defs) {
+            if (!(tree instanceof JCClassDecl))
+                continue;
+            JCClassDecl classDecl = (JCClassDecl) tree;
+            Map<String, Usage> current = dependencies.computeIfAbsent(classDecl.sym, type -> new HashMap<>());
+            if (first == null) {
+                first = current;
+                addImports(compilationUnit, classDecl.sym, current);
+            }
+            new DeclarationScanner(imports, current).scan(classDecl);
+            if (!complete)
+                return;
+        }
+        for (Map<String, Usage> typeDependencies : dependencies.values())
+            typeDependencies.remove(ownPackage);
+    }
+
+    private void addImports(JCCompilationUnit compilationUnit, Element element, Map<String, Usage> current) {
+        for (JCImport i : compilationUnit.getImports()) {
+            JCFieldAccess qualifiedIdentifier = (JCFieldAccess) i.getQualifiedIdentifier();
+            Symbol symbol = (i.isStatic() || qualifiedIdentifier.name.contentEquals("*"))
+                ? TreeInfo.symbol(qualifiedIdentifier.selected) : qualifiedIdentifier.sym;
+            if (symbol != null)
+                add(current, packageNames.of(symbol), element, TreeInfo.getStartPos(qualifiedIdentifier));
+        }
+    }
+
+    private void add(Map<String, Usage> current, String name, Element element, int position) {
+        if (!ignored.matches(name))
+            Usage.add(current, name, element, position);
+    }
+
+    private class DeclarationScanner extends ChainScanner {
+        private final ImportIndex imports;
+        private final Map<String, Usage> current;
+
+        private DeclarationScanner(ImportIndex imports, Map<String, Usage> current) {
+            this.imports = imports;
+            this.current = current;
+        }
+
+        /** Stop as soon as we know that we need the deep scan, anyway */
+        @Override public void scan(JCTree tree) {
+            if (complete)
+                super.scan(tree);
+        }
+
+        @Override public void visitClassDef(JCClassDecl classDecl) {
+            addType(classDecl.getExtendsClause(), classDecl.sym);
+            for (JCExpression implementsClause : classDecl.getImplementsClause())
+                addType(implementsClause, classDecl.sym);
+            super.visitClassDef(classDecl);
+        }
+
+        /** Field types are dependencies, local variables are only covered by the imports, unless they are qualified */
+        @Override public void visitVarDef(JCVariableDecl variable) {
+            addType(variable.getType(), variable.sym);
+            super.visitVarDef(variable);
+        }
+
+        @Override public void visitNewClass(JCNewClass newClass) {
+            addType(newClass.getIdentifier(), null);
+            super.visitNewClass(newClass);
+        }
+
+        @Override public void visitApply(JCMethodInvocation methodInvocation) {
+            JCExpression methodSelect = methodInvocation.getMethodSelect();
+            if (methodSelect instanceof JCFieldAccess) {
+                JCExpression selected = ((JCFieldAccess) methodSelect).selected;
+                if (selected instanceof JCNewClass) { // the return type is an indirect dependency
+                    complete = false;
+                } else if (selected instanceof JCIdent) { // static methods may be declared in a super type in another package
+                    ClassSymbol type = imports.resolve(((JCIdent) selected).name);
+                    if (type != null && !ignored.matches(packageNames.of(type)))
+                        complete = false;
+                } else if (selected instanceof JCFieldAccess && elements.getTypeElement(selected.toString()) != null) {
+                    complete = false;
+                }
+            }
+            super.visitApply(methodInvocation);
+        }
+
+        /** Using an annotation is not a dependency */
+        @Override public void visitAnnotation(JCAnnotation annotation) {}
+
+        /** Add the types of a declaration, if there is an element, or only check that it's not qualified */
+        private void addType(JCTree type, Element element) {
+            if (type == null || !complete)
+                return;
+            if (type instanceof JCIdent) {
+                if (element != null) {
+                    ClassSymbol symbol = imports.resolve(((JCIdent) type).name);
+                    if (symbol != null)
+                        add(current, packageNames.of(symbol), element, TreeInfo.getStartPos(type));
+                }
+            } else if (type instanceof JCFieldAccess) {
+                complete = false;
+            } else if (type instanceof JCTypeApply) {
+                addType(((JCTypeApply) type).getType(), element);
+                for (JCExpression typeArgument : ((JCTypeApply) type).getTypeArguments())
+                    addType(typeArgument, element);
+            } else if (type instanceof JCWildcard) {
+                addType(((JCWildcard) type).getBound(), element);
+            } else if (type instanceof JCArrayTypeTree) {
+                addType(((JCArrayTypeTree) type).getType(), element);
+            }
+        }
+    }
+}
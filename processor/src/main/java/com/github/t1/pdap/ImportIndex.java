@@ -0,0 +1,83 @@
+package com.github.t1.pdap;
+
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.code.Symbol.ClassSymbol;
+import com.sun.tools.javac.model.JavacElements;
+import com.sun.tools.javac.tree.JCTree.JCCompilationUnit;
+import com.sun.tools.javac.tree.JCTree.JCFieldAccess;
+import com.sun.tools.javac.tree.JCTree.JCImport;
+import com.sun.tools.javac.util.Name;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves simple names to the types they refer to in one compilation unit.
+ * The imports are indexed only once, and every name is resolved only once, including names that are not a type at all.
+ */
+class ImportIndex {
+    private final JavacElements elements;
+    /** The single-type imports and the single static imports, mapped to the type they import from */
+    private final Map<Name, ClassSymbol> singleImports = new HashMap<>();
+    /** The package or type names of the type-import-on-demand declarations, i.e. <code>import foo.*</code> */
+    private final List<String> onDemandImports = new ArrayList<>();
+    /** The types of the static-import-on-demand declarations, i.e. <code>import static foo.Bar.*</code> */
+    private final List<ClassSymbol> staticOnDemandImports = new ArrayList<>();
+    /** The names resolved so far, mapped to <code>null</code> if they are not a type */
+    private final Map<Name, ClassSymbol> resolved = new HashMap<>();
+
+    ImportIndex(JavacElements elements, JCCompilationUnit compilationUnit) {
+        this.elements = elements;
+        for (JCImport i : compilationUnit.getImports()) {
+            JCFieldAccess qualifiedIdentifier = (JCFieldAccess) i.getQualifiedIdentifier();
+            boolean onDemand = qualifiedIdentifier.name.contentEquals("*");
+            if (i.isStatic()) {
+                ClassSymbol type = (ClassSymbol) ((JCFieldAccess) qualifiedIdentifier.selected).sym;
+                if (onDemand)
+                    staticOnDemandImports.add(type);
+                else
+                    singleImports.putIfAbsent(qualifiedIdentifier.name, type);
+            } else if (onDemand) {
+                onDemandImports.add(qualifiedIdentifier.selected.toString());
+            } else {
+                singleImports.putIfAbsent(qualifiedIdentifier.name, (ClassSymbol) qualifiedIdentifier.sym);
+            }
+        }
+    }
+
+    /** @return the type the simple name refers to, or <code>null</code> if it's not a type */
+    ClassSymbol resolve(Name name) {
+        if (resolved.containsKey(name))
+            return resolved.get(name);
+        ClassSymbol symbol = lookup(name);
+        resolved.put(name, symbol);
+        return symbol;
+    }
+
+    private ClassSymbol lookup(Name name) {
+        ClassSymbol symbol = singleImports.get(name);
+        if (symbol != null)
+            return symbol;
+        symbol = elements.getTypeElement(name);
+        if (symbol != null)
+            return symbol;
+        for (String onDemandImport : onDemandImports) {
+            symbol = elements.getTypeElement(onDemandImport + "." + name);
+            if (symbol != null)
+                return symbol;
+        }
+        for (ClassSymbol type : staticOnDemandImports)
+            if (hasMember(type, name))
+                return type;
+        return elements.getTypeElement("java.lang." + name);
+    }
+
+    private boolean hasMember(ClassSymbol type, Name name) {
+        for (Symbol member : type.getEnclosedElements())
+            if (member.name == name)
+                return true;
+        return false;
+    }
+}
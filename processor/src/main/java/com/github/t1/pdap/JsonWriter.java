@@ -0,0 +1,138 @@
+package com.github.t1.pdap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Writes compact JSON as it goes, without building a document in memory: the caller opens and closes the objects
+ * and arrays, and we only keep track of the commas between their members.
+ */
+class JsonWriter implements Closeable {
+    private final Writer out;
+    /** For each open object or array: does the next member need a comma before it? */
+    private boolean[] separate = new boolean[8];
+    private int depth = 0;
+    /** The value of a name we just wrote follows without a comma */
+    private boolean afterName = false;
+
+    JsonWriter(Writer out) { this.out = out; }
+
+    JsonWriter beginObject() { return begin('{'); }
+
+    JsonWriter endObject() { return end('}'); }
+
+    JsonWriter beginArray() { return begin('['); }
+
+    JsonWriter endArray() { return end(']'); }
+
+    JsonWriter name(String name) {
+        separate();
+        string(name);
+        write(":");
+        afterName = true;
+        return this;
+    }
+
+    JsonWriter value(String value) {
+        separate();
+        if (value == null)
+            write("null");
+        else
+            string(value);
+        return this;
+    }
+
+    JsonWriter value(long value) {
+        separate();
+        write(Long.toString(value));
+        return this;
+    }
+
+    JsonWriter value(boolean value) {
+        separate();
+        write(Boolean.toString(value));
+        return this;
+    }
+
+    JsonWriter property(String name, String value) { return name(name).value(value); }
+
+    JsonWriter property(String name, long value) { return name(name).value(value); }
+
+    JsonWriter property(String name, boolean value) { return name(name).value(value); }
+
+    private JsonWriter begin(char bracket) {
+        separate();
+        write(String.valueOf(bracket));
+        if (depth == separate.length)
+            separate = Arrays.copyOf(separate, 2 * depth);
+        separate[depth++] = false;
+        return this;
+    }
+
+    private JsonWriter end(char bracket) {
+        if (depth == 0)
+            throw new IllegalStateException("nothing open to close with " + bracket);
+        depth--;
+        write(String.valueOf(bracket));
+        return this;
+    }
+
+    private void separate() {
+        if (afterName) {
+            afterName = false;
+        } else if (depth > 0) {
+            if (separate[depth - 1])
+                write(",");
+            separate[depth - 1] = true;
+        }
+    }
+
+    private void string(String string) {
+        StringBuilder out = new StringBuilder(string.length() + 2).append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        out.append(String.format("\\u%04x", (int) c));
+                    else
+                        out.append(c);
+            }
+        }
+        write(out.append('"').toString());
+    }
+
+    private void write(String string) {
+        try {
+            out.write(string);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override public void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.github.t1.pdap;
+
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.code.Symbol.ClassSymbol;
+import com.sun.tools.javac.code.Symbol.MethodSymbol;
+import com.sun.tools.javac.code.Symbol.VarSymbol;
+import com.sun.tools.javac.code.Type;
+import com.sun.tools.javac.code.Type.ArrayType;
+import com.sun.tools.javac.code.Type.TypeVar;
+import com.sun.tools.javac.model.JavacElements;
+import com.sun.tools.javac.util.List;
+import com.sun.tools.javac.util.Name;
+
+import javax.lang.model.util.Elements;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds the method invoked by name and the types of the arguments, as the trees are not attributed, yet.
+ * The packages of every method found are remembered by the owner type, the method name, and the argument types,
+ * as the same methods are generally invoked over and over again.
+ */
+class MethodResolver {
+    static class ResolvedMethod {
+        /** The package of the type declaring the method */
+        final String packageName;
+        /** The package of the return type, or <code>null</code> if it's a primitive or <code>void</code> */
+        final String returnTypePackageName;
+
+        private ResolvedMethod(String packageName, String returnTypePackageName) {
+            this.packageName = packageName;
+            this.returnTypePackageName = returnTypePackageName;
+        }
+    }
+
+    private static final ResolvedMethod NOT_FOUND = new ResolvedMethod(null, null);
+
+    private static class Key {
+        private final ClassSymbol owner;
+        private final Name name;
+        private final String[] argumentTypes;
+        private final int hashCode;
+
+        private Key(ClassSymbol owner, Name name, String[] argumentTypes) {
+            this.owner = owner;
+            this.name = name;
+            this.argumentTypes = argumentTypes;
+            this.hashCode = (owner.hashCode() * 31 + name.hashCode()) * 31 + Arrays.hashCode(argumentTypes);
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key that = (Key) o;
+            return this.owner == that.owner && this.name == that.name && Arrays.equals(this.argumentTypes, that.argumentTypes);
+        }
+
+        @Override public int hashCode() { return hashCode; }
+    }
+
+    private final JavacElements elements;
+    private final PackageNames packageNames;
+    private final Map<Key, ResolvedMethod> resolved = new HashMap<>();
+
+    MethodResolver(Elements elements, PackageNames packageNames) {
+        this.elements = (JavacElements) elements;
+        this.packageNames = packageNames;
+    }
+
+    /**
+     * @param argumentTypes the fully qualified names of the types of the arguments, <code>null</code> for unknown types
+     * @return the method found, or <code>null</code> if there is no such method
+     */
+    ResolvedMethod resolve(ClassSymbol owner, Name name, String[] argumentTypes) {
+        if (owner == null)
+            return null;
+        Key key = new Key(owner, name, argumentTypes);
+        ResolvedMethod method = resolved.get(key);
+        if (method == null) {
+            method = find(owner, name, argumentTypes);
+            resolved.put(key, method);
+        }
+        return (method == NOT_FOUND) ? null : method;
+    }
+
+    private ResolvedMethod find(ClassSymbol owner, Name name, String[] argumentTypes) {
+        for (Symbol member : elements.getAllMembers(owner)) {
+            if (member instanceof MethodSymbol) {
+                MethodSymbol method = (MethodSymbol) member;
+                if (method.name == name && argMatch(argumentTypes, method.getParameters(), method.isVarArgs())) {
+                    return new ResolvedMethod(packageNames.of(method.owner), returnTypePackageName(method));
+                }
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    private String returnTypePackageName(MethodSymbol method) {
+        Type returnType = method.getReturnType();
+        return (returnType == null || returnType.isPrimitiveOrVoid()) ? null : packageNames.of(returnType.tsym);
+    }
+
+    private boolean argMatch(String[] actuals, List<VarSymbol> expecteds, boolean varArgs) {
+        if (expecteds.size() == actuals.length || varArgs && actuals.length >= expecteds.size() - 1) {
+            for (int i = 0; i < actuals.length; i++) {
+                boolean isLastExpected = i >= expecteds.size() - 1;
+                int expectedIndex = isLastExpected ? expecteds.size() - 1 : i;
+                if (!argMatch(expecteds.get(expectedIndex).type, actuals[i], varArgs && isLastExpected))
+                    return false;
+            }
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private boolean argMatch(Type expected, String actual, boolean varArgs) {
+        if (actual == null)
+            return false;
+        if (varArgs)
+            expected = ((ArrayType) expected).elemtype;
+        if (expected instanceof TypeVar)
+            expected = expected.getUpperBound();
+        String expectedString = expected.isPrimitive() ? boxed(expected).getName() : expected.asElement().toString();
+        return expectedString.equals(actual);
+    }
+
+    private Class<?> boxed(Type type) {
+        switch (type.getTag()) {
+            case BYTE:
+                return Byte.class;
+            case CHAR:
+                return Character.class;
+            case SHORT:
+                return Short.class;
+            case LONG:
+                return Long.class;
+            case FLOAT:
+                return Float.class;
+            case INT:
+                return Integer.class;
+            case DOUBLE:
+                return Double.class;
+            case BOOLEAN:
+                return Boolean.class;
+            case VOID:
+                return Void.class;
+        }
+        throw new UnsupportedOperationException("unboxable type " + type);
+    }
+}
@@ -1,112 +1,316 @@
 package com.github.t1.pdap;
 
-import com.github.t1.pdap.Dependencies.Dependency;
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.code.Symbol.ClassSymbol;
+import com.sun.tools.javac.model.JavacElements;
 
+import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.RoundEnvironment;
 import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
 import javax.lang.model.element.Element;
-import javax.lang.model.element.Name;
-import javax.lang.model.element.PackageElement;
 import javax.lang.model.element.TypeElement;
-import javax.tools.Diagnostic.Kind;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
+import static java.util.Collections.emptyMap;
 import static java.util.stream.Collectors.joining;
-import static javax.tools.Diagnostic.Kind.ERROR;
-import static javax.tools.Diagnostic.Kind.WARNING;
 
 @SupportedAnnotationTypes("com.github.t1.pdap.*")
+@SupportedOptions({PackageDependenciesAnnotationProcessor.ANALYSIS, PackageDependenciesAnnotationProcessor.IGNORE,
+    PackageDependenciesAnnotationProcessor.EXCLUDE_GENERATED, PackageDependenciesAnnotationProcessor.EXCLUDE,
+    PackageDependenciesAnnotationProcessor.EXCLUDE_PATHS, PackageDependenciesAnnotationProcessor.BOOTSTRAP,
+    PackageDependenciesAnnotationProcessor.USAGES, PackageDependenciesAnnotationProcessor.SITES,
+    PackageDependenciesAnnotationProcessor.METRICS, PackageDependenciesAnnotationProcessor.MAX_FAN_IN,
+    PackageDependenciesAnnotationProcessor.MAX_FAN_OUT, PackageDependenciesAnnotationProcessor.EXPORT,
+    PackageDependenciesAnnotationProcessor.SARIF})
 public class PackageDependenciesAnnotationProcessor extends AbstractAnnotationProcessor {
-    private final Map<Name, Map<String, Element>> actualDependencies = new HashMap<>();
+    /** The processor option to select the {@link Analysis}, e.g. <code>-Apdap.analysis=adaptive</code> */
+    static final String ANALYSIS = "pdap.analysis";
+    /** The processor option for the {@link IgnoredPackages}, e.g. <code>-Apdap.ignore=JDK,lombok</code> */
+    static final String IGNORE = "pdap.ignore";
+    /** The processor option to also check <code>@Generated</code> types: <code>-Apdap.excludeGenerated=false</code> */
+    static final String EXCLUDE_GENERATED = "pdap.excludeGenerated";
+    /** The processor option for the package patterns of the {@link ExcludedSources}, e.g. <code>-Apdap.exclude=com.example.api+</code> */
+    static final String EXCLUDE = "pdap.exclude";
+    /** The processor option for the path globs of the {@link ExcludedSources}, e.g. <code>-Apdap.excludePaths=**&#47;generated-sources/**</code> */
+    static final String EXCLUDE_PATHS = "pdap.excludePaths";
+    /** The processor option to collect and report the dependencies of packages without a policy: <code>-Apdap.bootstrap=true</code> */
+    static final String BOOTSTRAP = "pdap.bootstrap";
+    /** The processor option to note how often each dependency is used: <code>-Apdap.usages=true</code> */
+    static final String USAGES = "pdap.usages";
+    /**
+     * The processor option for the maximum number of sites we note for each forbidden dependency: <code>-Apdap.sites=10</code>.
+     * A site is the start position of a reference to the dependency, so a reference visited twice is still one site.
+     */
+    static final String SITES = "pdap.sites";
+    static final int DEFAULT_SITES = 10;
+    /** The processor option to note the coupling metrics of each package: <code>-Apdap.metrics=true</code> */
+    static final String METRICS = "pdap.metrics";
+    /** The processor option for the maximum number of packages depending on a package, e.g. <code>-Apdap.maxFanIn=20</code> */
+    static final String MAX_FAN_IN = "pdap.maxFanIn";
+    /** The processor option for the maximum number of packages a package depends on, e.g. <code>-Apdap.maxFanOut=10</code> */
+    static final String MAX_FAN_OUT = "pdap.maxFanOut";
+    /** The processor option to write the dependency graph in a {@link GraphExport.Format}, e.g. <code>-Apdap.export=json</code> */
+    static final String EXPORT = "pdap.export";
+    /** The processor option to also write the dependency messages to a {@link SarifReport}: <code>-Apdap.sarif=true</code> */
+    static final String SARIF = "pdap.sarif";
+
+    enum Analysis {
+        /** Scan every compilation unit in depth */
+        FULL,
+        /** Scan only the imports and declarations of a compilation unit, and in depth only if that's not enough */
+        ADAPTIVE
+    }
+
+    private IgnoredPackages ignored;
+    private ExcludedSources excluded;
+    private Policies policies;
+    private final CompilationGraph compilation = new CompilationGraph();
+    /**
+     * The dependencies of the types collected together with their compilation unit, but not folded into
+     * the {@link Dependencies}, yet. We release them as soon as we do, so we don't hold on to all elements compiled.
+     */
+    private final Map<TypeElement, Map<String, Usage>> actualDependencies = new HashMap<>();
+    /** The symbols of the method resolutions and package names are valid only within one round */
+    private MethodResolver methods;
+    private PackageNames packageNames;
+    /** The {@link PackageDependenciesPlugin} does a better job, if it's active */
+    private boolean pluginActive;
+    private Analysis analysis;
+    /** Collect the dependencies of packages without a policy, to suggest one */
+    private boolean bootstrap;
+    private boolean usages;
+    private int maxSites;
+    private boolean metrics;
+    /** The maximum fan-in and fan-out to warn about, or 0 for no limit */
+    private int maxFanIn;
+    private int maxFanOut;
+    /** The format to export the dependencies in, or <code>null</code> to not export them */
+    private GraphExport.Format exportFormat;
+    /** The edges of all rounds, which we export when they are over, so each edge is exported only once */
+    private final DependencyEdges edges = new DependencyEdges();
+    private boolean sarif;
+    /** We create the SARIF report with the first round and append the results of each round */
+    private SarifReport sarifReport;
+    private DependencyListeners listeners;
+    /** The class loader to find the {@link DependencyListener}s with; the tests replace it */
+    ClassLoader listenerClassLoader = getClass().getClassLoader();
+
+    @Override public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        this.pluginActive = PackageDependenciesPlugin.isActive(processingEnv);
+        this.analysis = analysis(processingEnv.getOptions().get(ANALYSIS));
+        this.ignored = new IgnoredPackages(processingEnv.getOptions().get(IGNORE));
+        this.excluded = excludedSources(processingEnv.getOptions());
+        this.bootstrap = Boolean.parseBoolean(processingEnv.getOptions().get(BOOTSTRAP));
+        this.usages = Boolean.parseBoolean(processingEnv.getOptions().get(USAGES));
+        this.maxSites = number(SITES, processingEnv.getOptions().get(SITES), DEFAULT_SITES);
+        this.metrics = Boolean.parseBoolean(processingEnv.getOptions().get(METRICS));
+        this.maxFanIn = number(MAX_FAN_IN, processingEnv.getOptions().get(MAX_FAN_IN), 0);
+        this.maxFanOut = number(MAX_FAN_OUT, processingEnv.getOptions().get(MAX_FAN_OUT), 0);
+        this.exportFormat = exportFormat(processingEnv.getOptions().get(EXPORT));
+        this.sarif = Boolean.parseBoolean(processingEnv.getOptions().get(SARIF));
+        this.listeners = new DependencyListeners(listenerClassLoader);
+        if (!listeners.isEmpty() && !pluginActive) {
+            this.analysis = Analysis.FULL; // the listeners need all dependencies
+            listeners.init(processingEnv);
+        }
+        this.policies = new Policies(ignored);
+    }
+
+    private Analysis analysis(String option) {
+        if (option == null)
+            return Analysis.FULL;
+        try {
+            return Analysis.valueOf(option.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            error("Invalid " + ANALYSIS + " [" + option + "]: expected one of " + Arrays.toString(Analysis.values()).toLowerCase(Locale.ROOT));
+            return Analysis.FULL;
+        }
+    }
+
+    private GraphExport.Format exportFormat(String option) {
+        if (option == null)
+            return null;
+        try {
+            return GraphExport.Format.valueOf(option.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            error("Invalid " + EXPORT + " [" + option + "]: expected one of " + Arrays.toString(GraphExport.Format.values()).toLowerCase(Locale.ROOT));
+            return null;
+        }
+    }
+
+    private int number(String name, String option, int defaultValue) {
+        if (option == null)
+            return defaultValue;
+        try {
+            return Math.max(0, Integer.parseInt(option.trim()));
+        } catch (NumberFormatException e) {
+            error("Invalid " + name + " [" + option + "]: expected a number");
+            return defaultValue;
+        }
+    }
+
+    static ExcludedSources excludedSources(Map<String, String> options) {
+        return new ExcludedSources(options.get(EXCLUDE_GENERATED), options.get(EXCLUDE), options.get(EXCLUDE_PATHS));
+    }
 
     @Override
     public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
-        if (roundEnv.processingOver())
+        if (roundEnv.processingOver()) {
+            if (!pluginActive) {
+                reportCompilation();
+                listeners.finish();
+            }
+            if (exportFormat != null)
+                export();
+            if (sarifReport != null)
+                closeSarifReport();
             return false;
+        }
+        if (pluginActive)
+            return true;
         debug(() -> "process " + annotations + ": " + roundEnv.getRootElements());
-        Dependencies dependencies = new Dependencies(getElementUtils());
+        Dependencies dependencies = new Dependencies(getElementUtils(), policies, compilation, maxSites);
+        packageNames = new PackageNames();
+        methods = new MethodResolver(getElementUtils(), packageNames);
         for (Element element : roundEnv.getRootElements()) {
             if (!isType(element))
                 continue;
-            processType(dependencies, (TypeElement) element);
+            TypeElement typeElement = (TypeElement) element;
+            if (excluded.matches(typeElement, packageNames.of((Symbol) typeElement))) {
+                debug(() -> "exclude " + typeElement);
+                continue;
+            }
+            processType(dependencies, typeElement);
         }
-        report(dependencies);
+        actualDependencies.clear(); // e.g. excluded types collected with the other types in their compilation unit
+        Reporter reporter = new Reporter(getElementUtils(), this::print, sarifReport());
+        reporter.report(dependencies);
+        if (bootstrap)
+            reporter.reportInferred(dependencies);
+        if (usages)
+            reporter.reportUsages(dependencies);
+        if (exportFormat != null)
+            edges.add(dependencies);
         return true;
     }
 
+    /** @return the SARIF report, if it's enabled and we can create it, or <code>null</code> */
+    private SarifReport sarifReport() {
+        if (sarif && sarifReport == null) {
+            JavacElements elements = (JavacElements) getElementUtils();
+            try {
+                sarifReport = SarifReport.create(processingEnv.getFiler(), element -> elements.getTreeAndTopLevel(element, null, null));
+            } catch (IOException e) {
+                error("Can't write the SARIF report: " + e);
+                sarif = false;
+            }
+        }
+        return sarifReport;
+    }
+
+    private void closeSarifReport() {
+        try {
+            sarifReport.close();
+        } catch (UncheckedIOException e) {
+            error("Can't write the SARIF report: " + e);
+        }
+    }
+
+    private void export() {
+        try (GraphExport export = GraphExport.create(processingEnv.getFiler(), exportFormat)) {
+            export.export(edges);
+        } catch (IOException | UncheckedIOException e) {
+            error("Can't export the dependencies: " + e);
+        }
+    }
+
+    /**
+     * Cycles, transitive dependencies, and the coupling metrics may span packages compiled in different rounds,
+     * so we can report them only when all rounds are over
+     */
+    private void reportCompilation() {
+        long start = System.nanoTime();
+        Reporter reporter = new Reporter(getElementUtils(), this::print, sarifReport());
+        reporter.reportCycles(compilation);
+        reporter.reportTransitive(compilation);
+        reporter.reportMetrics(compilation, metrics, maxFanIn, maxFanOut);
+        debug(() -> "checked the whole graph in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+        if (isDebugEnabled())
+            for (String source : compilation.sources())
+                debug(() -> "package " + source + " depends transitively on " + compilation.reachable(source));
+    }
+
     private boolean isType(Element element) {
         return element.getKind().isClass() || element.getKind().isInterface();
     }
 
+    /** We need the dependencies of packages without a policy only to suggest one or to export them */
+    private boolean collectMissing() { return bootstrap || exportFormat != null; }
+
     private void processType(Dependencies dependencies, TypeElement typeElement) {
-        PackageElement packageElement = getElementUtils().getPackageOf(typeElement);
-        String source = packageElement.getQualifiedName().toString();
+        String source = packageNames.of((Symbol) typeElement);
         dependencies.scan(source);
-        actualDependencies(typeElement).forEach((target, element) -> dependencies.use((element == null) ? typeElement : element, source, target));
+        if (dependencies.missing(source) && !collectMissing()) {
+            debug(() -> "skip " + typeElement + " without policy");
+            return;
+        }
+        compilation.type(source, typeElement);
+        actualDependencies(dependencies, source, typeElement).forEach((target, usage) ->
+            dependencies.use((usage.element == null) ? typeElement : usage.element, source, target, usage, ((ClassSymbol) typeElement).sourcefile));
         debug(() -> "type " + typeElement + " has dependencies on " + dependencies.stream()
             .filter(dependency -> dependency.source.equals(source))
-            .map(dependency -> dependency.target + " (" + dependency.type.name().toLowerCase() + ")")
+            .map(dependency -> dependency.target + " (" + dependency.type.name().toLowerCase()
+                + ", used " + dependencies.usages(source, dependency.target) + " times)")
             .collect(joining("], [", "[", "]")));
     }
 
-    private Map<String, Element> actualDependencies(TypeElement element) {
-        return actualDependencies.computeIfAbsent(element.getQualifiedName(), name -> {
-            DependenciesCollector collector;
-            try {
-                collector = new DependenciesCollector(getElementUtils(), element);
-            } catch (Exception e) {
-                throw new RuntimeException("can't collect dependencies from " + element + ":\n  " + e
-                    + Arrays.stream(e.getStackTrace()).map(StackTraceElement::toString).collect(joining("\n  ")), e);
-            }
-            for (String extraImport : collector.extraImports)
-                warning("Import [" + extraImport + "] not found as dependency", element);
-            return collector.dependencies;
-        });
-    }
-
-    private void report(Dependencies dependencies) {
-        dependencies.stream().forEach(dependency -> {
-            Message message = message(dependency);
-            if (message != null)
-                print(message.kind, message.message + " [" + dependency.target + "]", message.element);
-        });
-        dependencies.missing().forEach(it -> warning("no @AllowDependenciesOn annotation", it));
-    }
-
-    private Message message(Dependency dependency) {
-        switch (dependency.type) {
-            case PRIMARY:
-                return (dependency.used) ? null : new Message(WARNING, "Unused dependency on", element(dependency));
-            case SECONDARY:
-                return null;
-            case INVALID:
-                return new Message(ERROR, "Invalid @AllowDependenciesOn: unknown package", element(dependency));
-            case FORBIDDEN:
-                return new Message(ERROR, "Forbidden dependency on", element(dependency));
-            case INFERRED:
-                return null;
-            case CYCLE:
-                return new Message(ERROR, "Cyclic dependency declared on", element(dependency));
+    /** Collects the dependencies of all types in the compilation unit of the element at once, and takes those of the element */
+    private Map<String, Usage> actualDependencies(Dependencies dependencies, String source, TypeElement element) {
+        Map<String, Usage> typeDependencies = actualDependencies.remove(element);
+        if (typeDependencies == null) {
+            Map<TypeElement, Map<String, Usage>> collected = (analysis == Analysis.ADAPTIVE)
+                ? importDependencies(dependencies, source, element) : null;
+            if (collected == null)
+                collected = deepDependencies(element);
+            actualDependencies.putAll(collected);
+            typeDependencies = actualDependencies.remove(element);
+            if (typeDependencies == null)
+                typeDependencies = emptyMap();
         }
-        throw new UnsupportedOperationException();
+        return typeDependencies;
     }
 
-    private Element element(Dependency dependency) {
-        return (dependency.element == null) ? getElementUtils().getPackageElement(dependency.source) : dependency.element;
+    /** @return the dependencies found in the imports and declarations, or <code>null</code> if that's not enough */
+    private Map<TypeElement, Map<String, Usage>> importDependencies(Dependencies dependencies, String source, TypeElement element) {
+        ImportDependenciesCollector collector = new ImportDependenciesCollector(getElementUtils(), packageNames, ignored, element);
+        if (!collector.complete)
+            return null;
+        for (Map<String, Usage> typeDependencies : collector.dependencies.values())
+            for (String target : typeDependencies.keySet())
+                if (!dependencies.allows(source, target))
+                    return null;
+        debug(() -> "imports and declarations are enough for " + element);
+        return collector.dependencies;
     }
 
-    private class Message {
-        private final Kind kind;
-        private final String message;
-        private final Element element;
-
-        private Message(Kind kind, String message, Element element) {
-            this.kind = kind;
-            this.message = message;
-            this.element = element;
+    private Map<TypeElement, Map<String, Usage>> deepDependencies(TypeElement element) {
+        DependenciesCollector collector;
+        try {
+            collector = new DependenciesCollector(getElementUtils(), methods, packageNames, ignored, listeners, element);
+        } catch (Exception e) {
+            throw new RuntimeException("can't collect dependencies from " + element + ":\n  " + e
+                + Arrays.stream(e.getStackTrace()).map(StackTraceElement::toString).collect(joining("\n  ")), e);
         }
+        for (String extraImport : collector.extraImports)
+            warning("Import [" + extraImport + "] not found as dependency", element);
+        return collector.dependencies;
     }
 }
@@ -0,0 +1,268 @@
+package com.github.t1.pdap;
+
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.Plugin;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import com.sun.tools.javac.api.BasicJavacTask;
+import com.sun.tools.javac.api.JavacTrees;
+import com.sun.tools.javac.code.Symbol.ClassSymbol;
+import com.sun.tools.javac.model.JavacElements;
+import com.sun.tools.javac.processing.JavacProcessingEnvironment;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.JCTree.JCClassDecl;
+import com.sun.tools.javac.tree.JCTree.JCCompilationUnit;
+import com.sun.tools.javac.util.Log;
+import com.sun.tools.javac.util.Pair;
+
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An alternative to the {@link PackageDependenciesAnnotationProcessor}: a javac plugin (<code>-Xplugin:pdap</code>)
+ * that collects the dependencies from the attributed trees, i.e. after the compiler has resolved all symbols and types.
+ * This is faster and more precise, but it doesn't warn about unused imports.
+ * <p>
+ * The annotation processor stays quiet, when the plugin is active in the same compilation.
+ */
+public class PackageDependenciesPlugin implements Plugin, TaskListener {
+    static final String NAME = "pdap";
+
+    /** Is the plugin active in the compilation the annotation processor runs in? */
+    static boolean isActive(ProcessingEnvironment processingEnv) {
+        return processingEnv instanceof JavacProcessingEnvironment
+            && ((JavacProcessingEnvironment) processingEnv).getContext().get(PackageDependenciesPlugin.class) != null;
+    }
+
+    private JavacTask task;
+    private IgnoredPackages ignored;
+    private ExcludedSources excluded;
+    private boolean bootstrap;
+    private boolean usages;
+    private int maxSites;
+    private boolean metrics;
+    /** The maximum fan-in and fan-out to warn about, or 0 for no limit */
+    private int maxFanIn;
+    private int maxFanOut;
+    /** The format to export the dependencies in, or <code>null</code> to not export them */
+    private GraphExport.Format exportFormat;
+    private boolean sarif;
+    private DependencyListeners listeners;
+    /** The class loader to find the {@link DependencyListener}s with; the tests replace it */
+    ClassLoader listenerClassLoader = getClass().getClassLoader();
+    private Policies policies;
+    private final PackageNames packageNames = new PackageNames();
+    /**
+     * The names of the top-level types entered but not analyzed, yet. We report when the last one is analyzed.
+     * These are names and not elements, as annotation processing rounds enter the same types again.
+     */
+    private final Set<String> pending = new HashSet<>();
+    /** The elements are not valid before annotation processing is over, so we create these with the first analysis */
+    private JavacElements elements;
+    private JavacTrees javacTrees;
+    private Dependencies dependencies;
+    private CompilationGraph compilation = new CompilationGraph();
+    /**
+     * The trees of the elements we report on; the compiler may have already generated and dropped them, when we report.
+     * That's only the first element using each new dependency, not every element using one.
+     */
+    private final Map<Element, Pair<JCTree, JCCompilationUnit>> trees = new HashMap<>();
+
+    @Override public String getName() { return NAME; }
+
+    /** The arguments are the same as the options of the annotation processor, e.g. <code>-Xplugin:"pdap pdap.ignore=JDK"</code> */
+    @Override public void init(JavacTask task, String... args) {
+        this.task = task;
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            options.put((equals < 0) ? arg : arg.substring(0, equals), (equals < 0) ? "" : arg.substring(equals + 1));
+        }
+        this.ignored = new IgnoredPackages(options.get(PackageDependenciesAnnotationProcessor.IGNORE));
+        this.excluded = PackageDependenciesAnnotationProcessor.excludedSources(options);
+        this.bootstrap = Boolean.parseBoolean(options.get(PackageDependenciesAnnotationProcessor.BOOTSTRAP));
+        this.usages = Boolean.parseBoolean(options.get(PackageDependenciesAnnotationProcessor.USAGES));
+        this.maxSites = number(options, PackageDependenciesAnnotationProcessor.SITES, PackageDependenciesAnnotationProcessor.DEFAULT_SITES);
+        this.metrics = Boolean.parseBoolean(options.get(PackageDependenciesAnnotationProcessor.METRICS));
+        this.maxFanIn = number(options, PackageDependenciesAnnotationProcessor.MAX_FAN_IN, 0);
+        this.maxFanOut = number(options, PackageDependenciesAnnotationProcessor.MAX_FAN_OUT, 0);
+        this.exportFormat = exportFormat(options.get(PackageDependenciesAnnotationProcessor.EXPORT));
+        this.sarif = Boolean.parseBoolean(options.get(PackageDependenciesAnnotationProcessor.SARIF));
+        this.listeners = new DependencyListeners(listenerClassLoader);
+        this.policies = new Policies(ignored);
+        if (task instanceof BasicJavacTask)
+            ((BasicJavacTask) task).getContext().put(PackageDependenciesPlugin.class, this);
+        task.addTaskListener(this);
+    }
+
+    private int number(Map<String, String> options, String name, int defaultValue) {
+        String option = options.get(name);
+        if (option == null)
+            return defaultValue;
+        try {
+            return Math.max(0, Integer.parseInt(option.trim()));
+        } catch (NumberFormatException e) {
+            print(Kind.ERROR, "Invalid " + name + " [" + option + "]: expected a number");
+            return defaultValue;
+        }
+    }
+
+    private GraphExport.Format exportFormat(String option) {
+        if (option == null)
+            return null;
+        try {
+            return GraphExport.Format.valueOf(option.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            print(Kind.ERROR, "Invalid " + PackageDependenciesAnnotationProcessor.EXPORT + " [" + option + "]: expected one of "
+                + Arrays.toString(GraphExport.Format.values()).toLowerCase(Locale.ROOT));
+            return null;
+        }
+    }
+
+    @Override public void started(TaskEvent event) {}
+
+    @Override public void finished(TaskEvent event) {
+        switch (event.getKind()) {
+            case ENTER:
+                for (JCTree tree : ((JCCompilationUnit) event.getCompilationUnit()).defs)
+                    if (tree instanceof JCClassDecl && ((JCClassDecl) tree).sym != null)
+                        pending.add(((JCClassDecl) tree).sym.flatName().toString());
+                break;
+            case ANALYZE:
+                TypeElement typeElement = event.getTypeElement();
+                if (typeElement == null || !pending.remove(((ClassSymbol) typeElement).flatName().toString()))
+                    break;
+                analyze(typeElement);
+                if (pending.isEmpty())
+                    report();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void analyze(TypeElement typeElement) {
+        if (javacTrees == null) {
+            javacTrees = JavacTrees.instance(task);
+            elements = (JavacElements) task.getElements();
+            dependencies = new Dependencies(elements, policies, compilation, maxSites);
+            listeners.init(JavacProcessingEnvironment.instance(((BasicJavacTask) task).getContext()));
+        }
+        String source = packageNames.of((ClassSymbol) typeElement);
+        if (excluded.matches(typeElement, source))
+            return;
+        JCClassDecl classDecl = (JCClassDecl) javacTrees.getTree(typeElement);
+        dependencies.scan(source);
+        if (dependencies.missing(source) && !bootstrap && exportFormat == null) // only needed to suggest a policy or to export
+            return;
+        compilation.type(source, typeElement);
+        JCCompilationUnit compilationUnit = (JCCompilationUnit) javacTrees.getPath(typeElement).getCompilationUnit();
+        new AttributedDependenciesCollector(packageNames, ignored, listeners, compilationUnit, classDecl).dependencies
+            .forEach((target, usage) -> {
+                Element element = (usage.element == null) ? typeElement : usage.element;
+                if (dependencies.use(element, source, target, usage, ((ClassSymbol) typeElement).sourcefile))
+                    trees.computeIfAbsent(element, this::tree);
+            });
+    }
+
+    private void report() {
+        SarifReport sarifReport = sarif ? sarifReport() : null;
+        Reporter reporter = new Reporter(elements, this::print, sarifReport);
+        reporter.report(dependencies);
+        if (bootstrap)
+            reporter.reportInferred(dependencies);
+        if (usages)
+            reporter.reportUsages(dependencies);
+        reporter.reportCycles(compilation);
+        reporter.reportTransitive(compilation);
+        if (sarifReport != null)
+            close(sarifReport);
+        reporter.reportMetrics(compilation, metrics, maxFanIn, maxFanOut);
+        if (exportFormat != null)
+            export();
+        listeners.finish();
+        compilation = new CompilationGraph();
+        dependencies = new Dependencies(elements, policies, compilation, maxSites);
+        trees.clear();
+    }
+
+    /** @return the SARIF report, with the trees we kept, or <code>null</code> if we can't create it */
+    private SarifReport sarifReport() {
+        try {
+            return SarifReport.create(filer(), element -> trees.computeIfAbsent(element, this::tree));
+        } catch (IOException e) {
+            print(Kind.ERROR, "Can't write the SARIF report: " + e);
+            return null;
+        }
+    }
+
+    private void close(SarifReport sarifReport) {
+        try {
+            sarifReport.close();
+        } catch (UncheckedIOException e) {
+            print(Kind.ERROR, "Can't write the SARIF report: " + e);
+        }
+    }
+
+    private void export() {
+        try (GraphExport export = GraphExport.create(filer(), exportFormat)) {
+            export.export(dependencies);
+        } catch (IOException | UncheckedIOException e) {
+            print(Kind.ERROR, "Can't export the dependencies: " + e);
+        }
+    }
+
+    private Filer filer() { return JavacProcessingEnvironment.instance(((BasicJavacTask) task).getContext()).getFiler(); }
+
+    private void print(Kind kind, String message, Element element) {
+        Pair<JCTree, JCCompilationUnit> tree = (element == null) ? null : trees.computeIfAbsent(element, this::tree);
+        if (tree == null)
+            print(kind, message);
+        else
+            javacTrees.printMessage(kind, message, tree.fst, tree.snd);
+    }
+
+    /** Generated elements, e.g. default constructors, have no tree of their own, so we take the enclosing element */
+    private Pair<JCTree, JCCompilationUnit> tree(Element element) {
+        for (Element e = element; e != null; e = e.getEnclosingElement()) {
+            Pair<JCTree, JCCompilationUnit> tree = elements.getTreeAndTopLevel(e, null, null);
+            if (tree != null)
+                return tree;
+        }
+        return null;
+    }
+
+    /** Like the <code>Messager</code> does for elements without a tree */
+    private void print(Kind kind, String message) {
+        Log log = Log.instance(((BasicJavacTask) task).getContext());
+        JavaFileObject source = log.useSource(null);
+        try {
+            switch (kind) {
+                case ERROR:
+                    log.error("proc.messager", message);
+                    break;
+                case WARNING:
+                case MANDATORY_WARNING:
+                    log.warning("proc.messager", message);
+                    break;
+                default:
+                    log.note("proc.messager", message);
+                    break;
+            }
+        } finally {
+            log.useSource(source);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.github.t1.pdap;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Dependencies between packages, e.g. those actually used or those allowed, as an adjacency matrix of {@link PackageIds}:
+ * one {@link BitSet} of target ids per source id. The size is proportional to the number of packages, not the number of types.
+ */
+class PackageGraph {
+    private static final BitSet NONE = new BitSet();
+
+    final PackageIds ids;
+    private BitSet[] targets = new BitSet[16];
+
+    PackageGraph(PackageIds ids) { this.ids = ids; }
+
+    void add(int source, int target) {
+        if (source >= targets.length)
+            targets = Arrays.copyOf(targets, Math.max(source + 1, targets.length * 2));
+        if (targets[source] == null)
+            targets[source] = new BitSet();
+        targets[source].set(target);
+    }
+
+    boolean contains(int source, int target) { return targets(source).get(target); }
+
+    /** The ids of the packages the source depends on; don't modify */
+    BitSet targets(int source) {
+        BitSet row = (source < targets.length) ? targets[source] : null;
+        return (row == null) ? NONE : row;
+    }
+
+    /** The number of ids, i.e. all ids of sources and targets are less than this */
+    int size() { return ids.size(); }
+}
@@ -0,0 +1,27 @@
+package com.github.t1.pdap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Dense <code>int</code> ids for package names, so we can index arrays by package instead of using maps */
+class PackageIds {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    /** @return the id of the package, creating a new one if it's the first time we see it */
+    int of(String packageName) {
+        Integer id = ids.get(packageName);
+        if (id == null) {
+            id = names.size();
+            ids.put(packageName, id);
+            names.add(packageName);
+        }
+        return id;
+    }
+
+    String name(int id) { return names.get(id); }
+
+    int size() { return names.size(); }
+}
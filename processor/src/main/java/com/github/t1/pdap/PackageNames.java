@@ -0,0 +1,27 @@
+package com.github.t1.pdap;
+
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.code.Symbol.PackageSymbol;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The fully qualified names of the packages of symbols, looked up via {@link Symbol#packge()} and cached by identity,
+ * so the name of every package is created only once, and all dependencies on a package share the same string.
+ * Nested types resolve to their package, not to the outer type. The symbols are valid only within one round.
+ */
+class PackageNames {
+    private final Map<Symbol, String> symbols = new IdentityHashMap<>();
+    private final Map<PackageSymbol, String> packages = new IdentityHashMap<>();
+
+    /** @return the name of the package of the symbol, or of the package itself */
+    String of(Symbol symbol) {
+        String name = symbols.get(symbol);
+        if (name == null) {
+            name = packages.computeIfAbsent(symbol.packge(), packageSymbol -> packageSymbol.getQualifiedName().toString());
+            symbols.put(symbol, name);
+        }
+        return name;
+    }
+}
@@ -0,0 +1,109 @@
+package com.github.t1.pdap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A set of package name patterns compiled into a trie of name segments, so matching a package name
+ * neither allocates nor evaluates regular expressions.
+ * <ul>
+ * <li><code>*</code> matches exactly one segment, e.g. <code>com.*.api</code>.</li>
+ * <li><code>**</code> matches any number of segments, including none, e.g. <code>**.controller</code>.</li>
+ * <li>A trailing <code>+</code> matches the package itself and all of its subpackages, e.g. <code>javax.ws.rs+</code>.</li>
+ * </ul>
+ */
+class PackagePatterns {
+    static boolean isPattern(String pattern) { return pattern.indexOf('*') >= 0 || pattern.endsWith("+"); }
+
+    private static class Node {
+        private final String segment;
+        private final List<Node> children = new ArrayList<>();
+        /** The pattern ending at this node, or <code>null</code> */
+        private String pattern;
+        /** The pattern ending at this node also matches all subpackages */
+        private boolean subpackages;
+
+        private Node(String segment) { this.segment = segment; }
+
+        private boolean isAnySegments() { return "**".equals(segment); }
+
+        private boolean matches(String name, int start, int end) {
+            return "*".equals(segment)
+                || segment.length() == end - start && segment.regionMatches(0, name, start, end - start);
+        }
+
+        private Node child(String segment) {
+            for (Node child : children)
+                if (child.segment.equals(segment))
+                    return child;
+            Node child = new Node(segment);
+            children.add(child);
+            return child;
+        }
+    }
+
+    private final Node root = new Node("");
+
+    boolean isEmpty() { return root.children.isEmpty(); }
+
+    void add(String pattern) {
+        boolean subpackages = pattern.endsWith("+");
+        Node node = root;
+        for (String segment : (subpackages ? pattern.substring(0, pattern.length() - 1) : pattern).split("\\."))
+            node = node.child(segment);
+        if (node.pattern == null || subpackages) {
+            node.pattern = pattern;
+            node.subpackages = subpackages;
+        }
+    }
+
+    void addAll(PackagePatterns other) { addAll(other.root); }
+
+    private void addAll(Node node) {
+        if (node.pattern != null)
+            add(node.pattern);
+        for (Node child : node.children)
+            addAll(child);
+    }
+
+    /** @return the first pattern matching the package name, or <code>null</code> if none matches */
+    String match(String packageName) {
+        return packageName.isEmpty() ? null : match(root, packageName, 0);
+    }
+
+    /** Match the rest of the name, starting at the segment at <code>start</code>, or after the end of the name */
+    private String match(Node node, String name, int start) {
+        if (start > name.length())
+            return matchEnd(node);
+        if (node.subpackages && node != root)
+            return node.pattern;
+        int end = name.indexOf('.', start);
+        if (end < 0)
+            end = name.length();
+        if (node.isAnySegments()) {
+            String match = match(node, name, end + 1);
+            if (match != null)
+                return match;
+        }
+        for (Node child : node.children) {
+            String match = child.isAnySegments() ? match(child, name, start)
+                : child.matches(name, start, end) ? match(child, name, end + 1)
+                : null;
+            if (match != null)
+                return match;
+        }
+        return null;
+    }
+
+    private String matchEnd(Node node) {
+        if (node.pattern != null)
+            return node.pattern;
+        for (Node child : node.children)
+            if (child.isAnySegments()) {
+                String match = matchEnd(child);
+                if (match != null)
+                    return match;
+            }
+        return null;
+    }
+}
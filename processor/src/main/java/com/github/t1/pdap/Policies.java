@@ -0,0 +1,231 @@
+package com.github.t1.pdap;
+
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.util.Elements;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableSet;
+
+/**
+ * The <code>@AllowDependenciesOn</code> policies of all packages, merged with their super packages.
+ * The packages are stored in a trie of their name segments, and the policy of every node is resolved only once
+ * from the already resolved policy of its parent node. It's shared by all types in the package and across rounds,
+ * so it holds only names and no elements, which are only valid within one round.
+ */
+class Policies {
+    static class Policy {
+        /** The dependencies allowed in the package-info of this package, or <code>null</code> if there is no annotation */
+        final Set<String> primary;
+        /** The dependencies allowed in this package or a super package, or <code>null</code> if there is no annotation at all */
+        final Set<String> all;
+        /** The source and target of dependencies declared in this package or a super package, where the target doesn't exist */
+        final List<Entry<String, String>> invalid;
+        /** The wildcard patterns in {@link #all}, compiled; or <code>null</code> if there are none */
+        final PackagePatterns patterns;
+        /** The targets with a {@link #PARENT} variable declared in this package or a super package */
+        private final List<String> templates;
+        /** This policy without the expanded {@link #templates}, i.e. what sub packages inherit */
+        private final Policy inheritable;
+
+        private Policy(Set<String> primary, Set<String> all, List<Entry<String, String>> invalid, PackagePatterns patterns,
+                       List<String> templates, Policy inheritable) {
+            this.primary = primary;
+            this.all = all;
+            this.invalid = invalid;
+            this.patterns = patterns;
+            this.templates = templates;
+            this.inheritable = (inheritable == null) ? this : inheritable;
+        }
+
+        boolean isMissing() { return all == null; }
+
+        boolean isPrimary(String target) { return primary != null && primary.contains(target); }
+
+        /** @return the allowed wildcard pattern matching the target package, or <code>null</code> if none matches */
+        String match(String target) { return (patterns == null) ? null : patterns.match(target); }
+    }
+
+    /** The variable for the parent of the source package, e.g. <code>${parent}.controller</code> for a sibling package */
+    static final String PARENT = "${parent}";
+
+    private static final Policy NONE = new Policy(null, null, emptyList(), null, emptyList(), null);
+
+    /** A package in the trie; the root node is the unnamed package, which can't have a policy */
+    private static class Node {
+        private final Node parent;
+        private final String name;
+        private final List<Node> children = new ArrayList<>();
+        private Policy policy;
+
+        private Node(Node parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        /** Find the child with the name segment from <code>start</code> to <code>end</code> of the <code>packageName</code> */
+        private Node child(String packageName, int start, int end) {
+            int length = end - start;
+            for (Node child : children)
+                if (child.name.length() == end && child.name.regionMatches(start, packageName, start, length))
+                    return child;
+            Node child = new Node(this, packageName.substring(0, end));
+            children.add(child);
+            return child;
+        }
+    }
+
+    private final Node root = new Node(null, "");
+    {
+        root.policy = NONE;
+    }
+    /** Dependencies on ignored packages are not checked, so allowing them would only result in unused dependencies */
+    private final IgnoredPackages ignored;
+
+    Policies(IgnoredPackages ignored) { this.ignored = ignored; }
+
+    Policy of(Elements elements, String packageName) {
+        return policy(elements, node(packageName));
+    }
+
+    private Node node(String packageName) {
+        Node node = root;
+        int start = 0;
+        while (start < packageName.length()) {
+            int end = packageName.indexOf('.', start);
+            if (end < 0)
+                end = packageName.length();
+            node = node.child(packageName, start, end);
+            start = end + 1;
+        }
+        return node;
+    }
+
+    private Policy policy(Elements elements, Node node) {
+        if (node.policy == null)
+            node.policy = resolve(elements, node.name, policy(elements, node.parent));
+        return node.policy;
+    }
+
+    private Policy resolve(Elements elements, String packageName, Policy parent) {
+        PackageElement element = elements.getPackageElement(packageName);
+        AllowDependenciesOn annotation = (element == null) ? null : element.getAnnotation(AllowDependenciesOn.class);
+        Policy inherited = parent.inheritable;
+        if (annotation == null) {
+            if (inherited.all == null)
+                return NONE;
+            if (inherited.templates.isEmpty())
+                return (inherited.primary == null) ? inherited
+                    : new Policy(null, inherited.all, inherited.invalid, inherited.patterns, inherited.templates, null);
+        }
+
+        Resolution inheritable = new Resolution(elements, ignored, packageName, inherited, (annotation == null) ? null : new HashSet<>());
+        List<String> ownTemplates = new ArrayList<>();
+        if (annotation != null)
+            for (String target : annotation.value())
+                if (target.contains(PARENT))
+                    ownTemplates.add(target);
+                else
+                    inheritable.allow(target, true);
+        List<String> templates = inherited.templates;
+        if (!ownTemplates.isEmpty()) {
+            templates = new ArrayList<>(templates);
+            templates.addAll(ownTemplates);
+        }
+        Policy base = inheritable.build(templates, null);
+        if (templates.isEmpty())
+            return base;
+
+        Resolution expanded = new Resolution(elements, ignored, packageName, base,
+            (base.primary == null) ? null : new HashSet<>(base.primary));
+        for (String template : inherited.templates)
+            expanded.allowExpanded(expand(template, packageName), false);
+        for (String template : ownTemplates)
+            expanded.allowExpanded(expand(template, packageName), true);
+        return expanded.build(templates, base);
+    }
+
+    /** Replace the {@link #PARENT} variable with the parent of the package */
+    private static String expand(String template, String packageName) {
+        int lastDot = packageName.lastIndexOf('.');
+        String expanded = template.replace(PARENT, (lastDot < 0) ? "" : packageName.substring(0, lastDot));
+        return expanded.startsWith(".") ? expanded.substring(1) : expanded;
+    }
+
+    /** Collects the allowed dependencies of one package, starting with those of another policy */
+    private static class Resolution {
+        private final Elements elements;
+        private final IgnoredPackages ignored;
+        private final String packageName;
+        private final Set<String> primary;
+        private final Set<String> all;
+        private final List<Entry<String, String>> invalid;
+        private PackagePatterns patterns;
+        private boolean copiedPatterns = false;
+
+        private Resolution(Elements elements, IgnoredPackages ignored, String packageName, Policy start, Set<String> primary) {
+            this.elements = elements;
+            this.ignored = ignored;
+            this.packageName = packageName;
+            this.primary = primary;
+            this.all = (start.all == null) ? new HashSet<>() : new HashSet<>(start.all);
+            this.invalid = new ArrayList<>(start.invalid);
+            this.patterns = start.patterns;
+        }
+
+        private void allow(String target, boolean isPrimary) {
+            if (target.isEmpty() || ignored.matches(target))
+                return;
+            if (PackagePatterns.isPattern(target)) {
+                addPattern(target);
+            } else {
+                PackageElement targetElement = elements.getPackageElement(target);
+                if (targetElement == null) {
+                    invalid.add(new SimpleEntry<>(packageName, target));
+                    return;
+                }
+                target = targetElement.getQualifiedName().toString();
+            }
+            all.add(target);
+            if (isPrimary)
+                primary.add(target);
+        }
+
+        /**
+         * Templates are generally meant for sub packages, so they expand to all sorts of packages.
+         * We silently skip those that don't exist or point back to the package itself.
+         */
+        private void allowExpanded(String target, boolean isPrimary) {
+            if (target.isEmpty() || target.equals(packageName) || ignored.matches(target))
+                return;
+            if (PackagePatterns.isPattern(target))
+                addPattern(target);
+            else if (elements.getPackageElement(target) == null)
+                return;
+            all.add(target);
+            if (isPrimary)
+                primary.add(target);
+        }
+
+        private void addPattern(String pattern) {
+            if (!copiedPatterns) {
+                PackagePatterns copy = new PackagePatterns();
+                if (patterns != null)
+                    copy.addAll(patterns);
+                patterns = copy;
+                copiedPatterns = true;
+            }
+            patterns.add(pattern);
+        }
+
+        private Policy build(List<String> templates, Policy inheritable) {
+            return new Policy((primary == null) ? null : unmodifiableSet(primary), unmodifiableSet(all), invalid, patterns,
+                templates, inheritable);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.github.t1.pdap;
+
+import com.github.t1.pdap.Dependencies.Dependency;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic.Kind;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static com.github.t1.pdap.Dependencies.Dependency.Type.FORBIDDEN;
+import static java.util.Comparator.comparingInt;
+import static java.util.stream.Collectors.joining;
+import static javax.tools.Diagnostic.Kind.ERROR;
+import static javax.tools.Diagnostic.Kind.NOTE;
+import static javax.tools.Diagnostic.Kind.WARNING;
+
+/** Reports the forbidden, invalid, unused, etc. dependencies, independent of how the compiler prints messages */
+class Reporter {
+    interface Printer {
+        void print(Kind kind, String message, Element element);
+    }
+
+    private final Elements elements;
+    private final Printer printer;
+    /** Also write the dependency messages to this report, if it's not <code>null</code> */
+    private final SarifReport sarif;
+
+    Reporter(Elements elements, Printer printer) { this(elements, printer, null); }
+
+    Reporter(Elements elements, Printer printer, SarifReport sarif) {
+        this.elements = elements;
+        this.printer = printer;
+        this.sarif = sarif;
+    }
+
+    void report(Dependencies dependencies) {
+        dependencies.stream().forEach(dependency -> {
+            Message message = message(dependency);
+            if (message != null) {
+                printer.print(message.kind, message.message + " [" + dependency.target + "]", message.element);
+                if (sarif != null)
+                    sarif.result(SarifReport.ruleId(dependency.type), message.kind, message.message + " [" + dependency.target + "]",
+                        message.element, hasMoreSites(dependencies, dependency) ? visitor -> dependencies.forEachSite(dependency, visitor) : null);
+            }
+            if (dependency.type == FORBIDDEN)
+                reportSites(dependencies, dependency);
+        });
+        dependencies.missing().forEach(it -> printer.print(WARNING, "no @AllowDependenciesOn annotation", it));
+    }
+
+    /** Suggest the annotation for each package without one, if we have collected its dependencies, i.e. when bootstrapping */
+    void reportInferred(Dependencies dependencies) {
+        dependencies.missing().forEach(it -> reportInferred(dependencies, it));
+    }
+
+    /** Note all sites of a forbidden dependency at once, so you don't have to fix and recompile one by one */
+    private void reportSites(Dependencies dependencies, Dependency dependency) {
+        if (!hasMoreSites(dependencies, dependency))
+            return;
+        List<String> sites = dependencies.sites(dependency);
+        int moreSites = dependencies.moreSites(dependency);
+        Element element = element(dependency);
+        for (String site : sites)
+            printer.print(NOTE, "forbidden dependency on [" + dependency.target + "] at " + site, element);
+        if (moreSites > 0)
+            printer.print(NOTE, "forbidden dependency on [" + dependency.target + "] at " + moreSites + ((moreSites == 1) ? " more site" : " more sites"), element);
+    }
+
+    /** A single site is where we report the dependency, anyway */
+    private static boolean hasMoreSites(Dependencies dependencies, Dependency dependency) {
+        return dependency.type == FORBIDDEN && dependencies.siteCount(dependency) + dependencies.moreSites(dependency) > 1;
+    }
+
+    /** Note how often each dependency is referenced and by how many elements, the most used first, so it's easy to spot the hottest couplings */
+    void reportUsages(Dependencies dependencies) {
+        List<Message> messages = new ArrayList<>();
+        dependencies.forEachUsage((dependency, target, count) -> messages.add(new Message(NOTE,
+            dependency.type.name().toLowerCase(Locale.ROOT) + " dependency on [" + target + "]: used " + plural(count, "time")
+                + " by " + plural(dependencies.users(dependency.source, target), "element"),
+            elements.getPackageElement(dependency.source), count)));
+        messages.sort(comparingInt((Message message) -> message.count).reversed());
+        messages.forEach(message -> printer.print(message.kind, message.message, message.element));
+    }
+
+    private static String plural(int count, String noun) { return count + " " + noun + ((count == 1) ? "" : "s"); }
+
+    /** Warn about each cycle between packages, with the shortest path through its first package and how each package uses the next */
+    void reportCycles(CompilationGraph compilation) {
+        for (List<String> cycle : compilation.cycles()) {
+            PackageElement element = elements.getPackageElement(cycle.get(0));
+            String message = "Dependency cycle " + cycle.stream().map(name -> "[" + name + "] -> ").collect(joining()) + "[" + cycle.get(0) + "]";
+            printer.print(WARNING, message, element);
+            if (sarif != null)
+                sarif.result(SarifReport.PACKAGE_CYCLE, WARNING, message, element, null);
+            for (int i = 0; i < cycle.size(); i++) {
+                String source = cycle.get(i);
+                String target = cycle.get((i + 1) % cycle.size());
+                printer.print(NOTE, "[" + source + "] -> [" + target + "] " + compilation.witness(source, target), element);
+            }
+        }
+    }
+
+    /** Report each package a package depends on via other packages, although a rule forbids that, with the shortest path */
+    void reportTransitive(CompilationGraph compilation) {
+        compilation.forEachTransitiveViolation((source, target, path) -> {
+            PackageElement element = elements.getPackageElement(source);
+            String message = "Forbidden transitive dependency on [" + target + "] via " + path.stream().map(name -> "[" + name + "]").collect(joining(" -> "));
+            printer.print(ERROR, message, element);
+            if (sarif != null)
+                sarif.result(SarifReport.FORBIDDEN_TRANSITIVE, ERROR, message, element, null);
+            for (int i = 0; i < path.size() - 1; i++)
+                printer.print(NOTE, "[" + path.get(i) + "] -> [" + path.get(i + 1) + "] " + compilation.witness(path.get(i), path.get(i + 1)), element);
+        });
+    }
+
+    /**
+     * Note the coupling metrics of each package, if <code>notes</code> is set, and warn about those exceeding the maximum
+     * fan-in or fan-out, if they are positive: afferent and efferent coupling (<code>Ca</code> and <code>Ce</code>),
+     * instability (<code>I = Ce / (Ca + Ce)</code>), and abstractness (<code>A</code>, abstract types / all types).
+     */
+    void reportMetrics(CompilationGraph compilation, boolean notes, int maxFanIn, int maxFanOut) {
+        compilation.forEachMetrics((packageName, afferent, efferent, types, abstractTypes) -> {
+            PackageElement element = elements.getPackageElement(packageName);
+            if (notes) {
+                double instability = (afferent + efferent == 0) ? 0 : (double) efferent / (afferent + efferent);
+                double abstractness = (double) abstractTypes / types;
+                printer.print(NOTE, String.format(Locale.ROOT, "coupling: Ca=%d, Ce=%d, I=%.2f, A=%.2f",
+                    afferent, efferent, instability, abstractness), element);
+            }
+            if (maxFanIn > 0 && afferent > maxFanIn)
+                printer.print(WARNING, "Fan-in of " + afferent + " packages exceeds the maximum of " + maxFanIn, element);
+            if (maxFanOut > 0 && efferent > maxFanOut)
+                printer.print(WARNING, "Fan-out of " + efferent + " packages exceeds the maximum of " + maxFanOut, element);
+        });
+    }
+
+    private void reportInferred(Dependencies dependencies, PackageElement packageElement) {
+        String source = packageElement.getQualifiedName().toString();
+        String targets = dependencies.inferredTargets(source)
+            .map(target -> "\"" + target + "\"")
+            .sorted()
+            .collect(joining(", "));
+        if (!targets.isEmpty())
+            printer.print(NOTE, "inferred @AllowDependenciesOn({" + targets + "})", packageElement);
+    }
+
+    private Message message(Dependency dependency) {
+        switch (dependency.type) {
+            case PRIMARY:
+                return (dependency.used) ? null : new Message(WARNING, "Unused dependency on", element(dependency));
+            case SECONDARY:
+                return null;
+            case INVALID:
+                return new Message(ERROR, "Invalid @AllowDependenciesOn: unknown package", element(dependency));
+            case FORBIDDEN:
+                return new Message(ERROR, "Forbidden dependency on", element(dependency));
+            case INFERRED:
+                return null;
+            case CYCLE:
+                return new Message(ERROR, "Cyclic dependency declared on", element(dependency));
+        }
+        throw new UnsupportedOperationException();
+    }
+
+    private Element element(Dependency dependency) {
+        return (dependency.element == null) ? elements.getPackageElement(dependency.source) : dependency.element;
+    }
+
+    private static class Message {
+        private final Kind kind;
+        private final String message;
+        private final Element element;
+        /** The number of usages to sort by, if applicable */
+        private final int count;
+
+        private Message(Kind kind, String message, Element element) { this(kind, message, element, 0); }
+
+        private Message(Kind kind, String message, Element element, int count) {
+            this.kind = kind;
+            this.message = message;
+            this.element = element;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.github.t1.pdap;
+
+import com.github.t1.pdap.CompilationUnits.SiteVisitor;
+import com.github.t1.pdap.Dependencies.Dependency.Type;
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.JCTree.JCCompilationUnit;
+import com.sun.tools.javac.tree.TreeInfo;
+import com.sun.tools.javac.util.Pair;
+
+import javax.annotation.processing.Filer;
+import javax.lang.model.element.Element;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.JavaFileObject;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+
+/**
+ * Streams the forbidden, invalid, cyclic, and unused dependencies, the cycles between packages, and the forbidden
+ * transitive dependencies as results of a
+ * <a href="https://docs.oasis-open.org/sarif/sarif/v2.1.0/sarif-v2.1.0.html">SARIF 2.1</a> log,
+ * one at a time, for code scanning tools to ingest instead of parsing the compiler output.
+ * The locations are the same as those of the compiler messages; all sites of a forbidden dependency are related locations.
+ */
+class SarifReport implements Closeable {
+    /** The name of the resource in the class output */
+    static final String FILE_NAME = "META-INF/pdap/dependencies.sarif";
+    /** The rule of the cycles between packages, which we report for the whole graph, not for a single dependency */
+    static final String PACKAGE_CYCLE = "package-cycle";
+    /** The rule of the dependencies via other packages that a <code>@ForbidTransitiveDependenciesOn</code> forbids */
+    static final String FORBIDDEN_TRANSITIVE = "forbidden-transitive-dependency";
+
+    /** Finds the tree of an element, which may already be gone, so the plugin takes those it kept */
+    interface Trees {
+        Pair<JCTree, JCCompilationUnit> of(Element element);
+    }
+
+    static SarifReport create(Filer filer, Trees trees) throws IOException {
+        return new SarifReport(new BufferedWriter(new OutputStreamWriter(
+            filer.createResource(CLASS_OUTPUT, "", FILE_NAME).openOutputStream(), UTF_8)), trees);
+    }
+
+    private final JsonWriter json;
+    private final Trees trees;
+
+    SarifReport(Writer out, Trees trees) {
+        this.json = new JsonWriter(out);
+        this.trees = trees;
+        json.beginObject()
+            .property("$schema", "https://json.schemastore.org/sarif-2.1.0.json")
+            .property("version", "2.1.0")
+            .name("runs").beginArray().beginObject()
+            .name("tool").beginObject().name("driver").beginObject()
+            .property("name", "pdap")
+            .name("rules").beginArray();
+        rule(Type.FORBIDDEN, "A dependency not allowed in the package-info");
+        rule(Type.INVALID, "An allowed dependency on a package that doesn't exist");
+        rule(Type.CYCLE, "A package allowing a dependency on itself");
+        rule(Type.PRIMARY, "A dependency allowed in the package-info but not used");
+        rule(PACKAGE_CYCLE, "A cycle of dependencies between packages");
+        rule(FORBIDDEN_TRANSITIVE, "A dependency via other packages that a package-info forbids");
+        json.endArray().endObject().endObject()
+            .name("results").beginArray();
+    }
+
+    private void rule(Type type, String description) { rule(ruleId(type), description); }
+
+    private void rule(String ruleId, String description) {
+        json.beginObject()
+            .property("id", ruleId)
+            .name("shortDescription").beginObject().property("text", description).endObject()
+            .endObject();
+    }
+
+    /** The dependencies allowed in the package-info can only be reported for not being used */
+    static String ruleId(Type type) {
+        switch (type) {
+            case FORBIDDEN:
+                return "forbidden-dependency";
+            case INVALID:
+                return "invalid-dependency";
+            case CYCLE:
+                return "cyclic-dependency";
+            case PRIMARY:
+                return "unused-dependency";
+            default:
+                throw new UnsupportedOperationException("no rule for " + type + " dependencies");
+        }
+    }
+
+    /** @param sites the sites of the result, to add as related locations, or <code>null</code> if there are none */
+    void result(String ruleId, Kind kind, String message, Element element, Consumer<SiteVisitor> sites) {
+        json.beginObject()
+            .property("ruleId", ruleId)
+            .property("level", (kind == Kind.ERROR) ? "error" : (kind == Kind.NOTE) ? "note" : "warning")
+            .name("message").beginObject().property("text", message).endObject();
+        Pair<JCTree, JCCompilationUnit> tree = (element == null) ? null : trees.of(element);
+        if (tree != null && tree.snd != null && tree.snd.sourcefile != null) {
+            int position = TreeInfo.diagnosticPositionFor((Symbol) element, tree.fst).getPreferredPosition();
+            json.name("locations").beginArray();
+            location(tree.snd.sourcefile, tree.snd.getLineMap().getLineNumber(position), tree.snd.getLineMap().getColumnNumber(position));
+            json.endArray();
+        }
+        if (sites != null) {
+            json.name("relatedLocations").beginArray();
+            sites.accept(this::location);
+            json.endArray();
+        }
+        json.endObject();
+    }
+
+    /** A line of <code>0</code> means we don't know the region in the file */
+    private void location(JavaFileObject file, long line, long column) {
+        json.beginObject()
+            .name("physicalLocation").beginObject()
+            .name("artifactLocation").beginObject().property("uri", file.toUri().toString()).endObject();
+        if (line > 0)
+            json.name("region").beginObject()
+                .property("startLine", line)
+                .property("startColumn", column)
+                .endObject();
+        json.endObject().endObject();
+    }
+
+    @Override public void close() {
+        json.endArray().endObject().endArray().endObject().close();
+    }
+}
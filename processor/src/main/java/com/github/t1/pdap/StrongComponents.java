@@ -0,0 +1,89 @@
+package com.github.t1.pdap;
+
+import java.util.Arrays;
+
+/**
+ * The strongly connected components of a {@link PackageGraph}, found with Tarjan's algorithm in a loop instead of recursively.
+ * The components are numbered in reverse topological order, i.e. a component depends only on itself
+ * and on components with a lower number. It's linear in the number of packages and dependencies.
+ */
+class StrongComponents {
+    /** The number of the component of each package id */
+    final int[] component;
+    /** The number of components */
+    final int count;
+    /** The package ids of all components, sorted by component; the members of component <code>c</code> start at <code>offsets[c]</code> */
+    private final int[] members;
+    private final int[] offsets;
+
+    StrongComponents(PackageGraph graph) {
+        int size = graph.size();
+        this.component = new int[size];
+        this.members = new int[size];
+        int[] index = new int[size];
+        Arrays.fill(index, -1);
+        int[] lowLink = new int[size];
+        int[] nextTarget = new int[size];
+        boolean[] onStack = new boolean[size];
+        int[] stack = new int[size];
+        int stackSize = 0;
+        int[] calls = new int[size];
+        int callsSize = 0;
+        int counter = 0;
+        int count = 0;
+        int membersSize = 0;
+        int[] offsets = new int[16];
+
+        for (int root = 0; root < size; root++) {
+            if (index[root] >= 0)
+                continue;
+            index[root] = lowLink[root] = counter++;
+            stack[stackSize++] = root;
+            onStack[root] = true;
+            calls[callsSize++] = root;
+            while (callsSize > 0) {
+                int node = calls[callsSize - 1];
+                int target = graph.targets(node).nextSetBit(nextTarget[node]);
+                if (target >= 0) {
+                    nextTarget[node] = target + 1;
+                    if (index[target] < 0) {
+                        index[target] = lowLink[target] = counter++;
+                        stack[stackSize++] = target;
+                        onStack[target] = true;
+                        calls[callsSize++] = target;
+                    } else if (onStack[target]) {
+                        lowLink[node] = Math.min(lowLink[node], index[target]);
+                    }
+                    continue;
+                }
+                callsSize--;
+                if (callsSize > 0) {
+                    int caller = calls[callsSize - 1];
+                    lowLink[caller] = Math.min(lowLink[caller], lowLink[node]);
+                }
+                if (lowLink[node] == index[node]) { // the members of the component are on top of the stack
+                    if (count + 1 >= offsets.length)
+                        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                    offsets[count] = membersSize;
+                    int member;
+                    do {
+                        member = stack[--stackSize];
+                        onStack[member] = false;
+                        component[member] = count;
+                        members[membersSize++] = member;
+                    } while (member != node);
+                    count++;
+                }
+            }
+        }
+        offsets[count] = membersSize;
+        this.count = count;
+        this.offsets = offsets;
+    }
+
+    /** The number of packages in the component */
+    int size(int component) { return offsets[component + 1] - offsets[component]; }
+
+    /** The package id of the i-th member of the component */
+    int member(int component, int i) { return members[offsets[component] + i]; }
+}
@@ -0,0 +1,124 @@
+package com.github.t1.pdap;
+
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The packages each package depends on, directly or transitively: one row of bits per {@link StrongComponents component},
+ * shared by all of its members. We compute the rows in reverse topological order of the components, each row as the
+ * bitwise or of the rows of the components it directly depends on, i.e. for 64 packages at once.
+ * <p>
+ * The components of the same level, i.e. with the same longest path to a component without dependencies,
+ * don't depend on each other, so for large graphs we compute them in parallel with fork/join, one level after the other.
+ */
+class TransitiveClosure {
+    /** Below this number of packages, starting parallel tasks costs more than it saves */
+    static final int PARALLEL_THRESHOLD = 1024;
+    /** The number of components a task computes without forking */
+    private static final int TASK_SIZE = 64;
+
+    private final PackageGraph graph;
+    private final StrongComponents components;
+    private final int words;
+    private final long[][] rows;
+
+    TransitiveClosure(PackageGraph graph) { this(graph, graph.size() >= PARALLEL_THRESHOLD); }
+
+    TransitiveClosure(PackageGraph graph, boolean parallel) {
+        this.graph = graph;
+        this.components = new StrongComponents(graph);
+        this.words = (graph.size() + 63) >>> 6;
+        this.rows = new long[components.count][];
+        if (parallel)
+            computeLevels();
+        else
+            for (int component = 0; component < components.count; component++)
+                computeRow(component);
+    }
+
+    /** Does the source depend on the target, directly or transitively? */
+    boolean reaches(int source, int target) {
+        return source < components.component.length && target < graph.size()
+            && (rows[components.component[source]][target >>> 6] & (1L << target)) != 0;
+    }
+
+    /** The ids of all packages the source depends on, directly or transitively */
+    BitSet reachable(int source) {
+        return (source < components.component.length) ? BitSet.valueOf(rows[components.component[source]]) : new BitSet();
+    }
+
+    /** All members of a cycle depend on each other, including themselves; the other dependencies come from the lower rows */
+    private void computeRow(int component) {
+        long[] row = new long[words];
+        int size = components.size(component);
+        for (int i = 0; i < size; i++) {
+            int member = components.member(component, i);
+            if (size > 1)
+                row[member >>> 6] |= 1L << member;
+            BitSet targets = graph.targets(member);
+            for (int target = targets.nextSetBit(0); target >= 0; target = targets.nextSetBit(target + 1)) {
+                row[target >>> 6] |= 1L << target;
+                int targetComponent = components.component[target];
+                if (targetComponent != component) {
+                    long[] targetRow = rows[targetComponent];
+                    for (int word = 0; word < words; word++)
+                        row[word] |= targetRow[word];
+                }
+            }
+        }
+        rows[component] = row;
+    }
+
+    private void computeLevels() {
+        int[] levels = new int[components.count];
+        int maxLevel = 0;
+        for (int component = 0; component < components.count; component++) {
+            for (int i = 0; i < components.size(component); i++) {
+                BitSet targets = graph.targets(components.member(component, i));
+                for (int target = targets.nextSetBit(0); target >= 0; target = targets.nextSetBit(target + 1)) {
+                    int targetComponent = components.component[target];
+                    if (targetComponent != component)
+                        levels[component] = Math.max(levels[component], levels[targetComponent] + 1);
+                }
+            }
+            maxLevel = Math.max(maxLevel, levels[component]);
+        }
+        // sort the components by level
+        int[] offsets = new int[maxLevel + 2];
+        for (int level : levels)
+            offsets[level + 1]++;
+        for (int level = 0; level <= maxLevel; level++)
+            offsets[level + 1] += offsets[level];
+        int[] sorted = new int[components.count];
+        int[] next = offsets.clone();
+        for (int component = 0; component < components.count; component++)
+            sorted[next[levels[component]]++] = component;
+
+        for (int level = 0; level <= maxLevel; level++)
+            ForkJoinPool.commonPool().invoke(new RowsTask(sorted, offsets[level], offsets[level + 1]));
+    }
+
+    /** Computes the rows of a range of components of the same level */
+    private class RowsTask extends RecursiveAction {
+        private final int[] components;
+        private final int start;
+        private final int end;
+
+        private RowsTask(int[] components, int start, int end) {
+            this.components = components;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override protected void compute() {
+            if (end - start <= TASK_SIZE) {
+                for (int i = start; i < end; i++)
+                    computeRow(components[i]);
+            } else {
+                int middle = (start + end) >>> 1;
+                invokeAll(new RowsTask(components, start, middle), new RowsTask(components, middle, end));
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.github.t1.pdap;
+
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.util.Elements;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The {@link ForbidTransitiveDependenciesOn} rules of all packages, merged with those of their super packages,
+ * and compiled to patterns. Each package is resolved only once from the already resolved rules of its parent.
+ * Like the {@link Policies}, it holds only names and no elements, so it's valid across rounds.
+ */
+class TransitiveRules {
+    private static final PackagePatterns NONE = new PackagePatterns();
+
+    private final Map<String, PackagePatterns> rules = new HashMap<>();
+
+    /** @return the patterns of the packages the package must not depend on transitively, or <code>null</code> if there are none */
+    PackagePatterns of(Elements elements, String packageName) {
+        PackagePatterns patterns = resolved(elements, packageName);
+        return (patterns == NONE) ? null : patterns;
+    }
+
+    private PackagePatterns resolved(Elements elements, String packageName) {
+        if (packageName.isEmpty())
+            return NONE;
+        PackagePatterns patterns = rules.get(packageName);
+        if (patterns == null) {
+            patterns = resolve(elements, packageName);
+            rules.put(packageName, patterns);
+        }
+        return patterns;
+    }
+
+    private PackagePatterns resolve(Elements elements, String packageName) {
+        int lastDot = packageName.lastIndexOf('.');
+        PackagePatterns inherited = resolved(elements, (lastDot < 0) ? "" : packageName.substring(0, lastDot));
+        PackageElement element = elements.getPackageElement(packageName);
+        ForbidTransitiveDependenciesOn annotation = (element == null) ? null : element.getAnnotation(ForbidTransitiveDependenciesOn.class);
+        if (annotation == null)
+            return inherited;
+        PackagePatterns patterns = new PackagePatterns();
+        patterns.addAll(inherited);
+        for (String target : annotation.value())
+            if (!target.trim().isEmpty())
+                patterns.add(target.trim());
+        return patterns.isEmpty() ? NONE : patterns;
+    }
+}
@@ -0,0 +1,57 @@
+package com.github.t1.pdap;
+
+import javax.lang.model.element.Element;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * How a type uses a target package: the first element that uses it, which elements use it, and where the references are.
+ * The collectors may visit the same reference more than once, e.g. a type name both as a type and as an identifier,
+ * so we keep each source position only once.
+ */
+class Usage {
+    /**
+     * Add a reference to the target by the element to the usages, keeping the first element
+     *
+     * @param position the start position of the referencing tree, or <code>-1</code> if the compiler generated it
+     */
+    static void add(Map<String, Usage> usages, String target, Element element, int position) {
+        Usage usage = usages.computeIfAbsent(target, t -> new Usage(element));
+        usage.elements.add(element);
+        if (position < 0)
+            usage.generated = true;
+        else if (usage.visited.add(position))
+            usage.addPosition(position);
+    }
+
+    /** The first element that uses the target, or <code>null</code> if it's the type itself */
+    final Element element;
+    private final Set<Element> elements = new HashSet<>();
+    /** The positions we already have, to skip references we visit again */
+    private final Set<Integer> visited = new HashSet<>();
+    /** The start positions of the references to the target, in the order we found them */
+    private int[] positions = new int[4];
+    private int positionCount = 0;
+    /** Is there a reference without a position, which we count only once, as we can't tell repeat visits apart */
+    private boolean generated = false;
+
+    private Usage(Element element) { this.element = element; }
+
+    private void addPosition(int position) {
+        if (positionCount == positions.length)
+            positions = Arrays.copyOf(positions, positionCount * 2);
+        positions[positionCount++] = position;
+    }
+
+    /** The number of references to the target */
+    int count() { return positionCount + (generated ? 1 : 0); }
+
+    /** The number of elements using the target, e.g. a method with three references is one element */
+    int elementCount() { return elements.size(); }
+
+    int positionCount() { return positionCount; }
+
+    int position(int i) { return positions[i]; }
+}
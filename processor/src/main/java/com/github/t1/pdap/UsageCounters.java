@@ -0,0 +1,73 @@
+package com.github.t1.pdap;
+
+import java.util.Arrays;
+
+/**
+ * How often the types in a source package use a target package: for each source package, a small open addressing
+ * hash table from the {@link PackageIds} of its targets to the counts. So the memory grows with the dependencies used,
+ * like the {@link PackageGraph}, and not with the square of the number of packages.
+ */
+class UsageCounters {
+    private Row[] rows = new Row[16];
+
+    void add(int sourceId, int targetId, int count) {
+        if (sourceId >= rows.length)
+            rows = Arrays.copyOf(rows, Math.max(sourceId + 1, rows.length * 2));
+        Row row = rows[sourceId];
+        if (row == null)
+            row = rows[sourceId] = new Row();
+        row.add(targetId, count);
+    }
+
+    int get(int sourceId, int targetId) {
+        Row row = (sourceId < rows.length) ? rows[sourceId] : null;
+        return (row == null) ? 0 : row.get(targetId);
+    }
+
+    private static class Row {
+        /** The target ids plus one, so <code>0</code> marks a free slot */
+        private int[] keys = new int[4];
+        private int[] counts = new int[4];
+        private int size = 0;
+
+        private void add(int targetId, int count) {
+            int slot = slot(targetId);
+            if (keys[slot] == 0) {
+                keys[slot] = targetId + 1;
+                if (2 * ++size > keys.length)
+                    grow();
+                slot = slot(targetId);
+            }
+            counts[slot] += count;
+        }
+
+        private int get(int targetId) {
+            int slot = slot(targetId);
+            return (keys[slot] == 0) ? 0 : counts[slot];
+        }
+
+        /** @return the slot of the target, or the free slot where it belongs */
+        private int slot(int targetId) {
+            int mask = keys.length - 1;
+            int hash = targetId * 0x9E3779B9;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (keys[slot] != 0 && keys[slot] != targetId + 1)
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            int[] oldCounts = counts;
+            keys = new int[2 * oldKeys.length];
+            counts = new int[2 * oldKeys.length];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int slot = slot(oldKeys[i] - 1);
+                    keys[slot] = oldKeys[i];
+                    counts[slot] = oldCounts[i];
+                }
+            }
+        }
+    }
+}
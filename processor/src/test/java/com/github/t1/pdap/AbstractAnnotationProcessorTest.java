@@ -1,5 +1,9 @@
 package com.github.t1.pdap;
 
+import com.sun.source.util.JavacTask;
+
+import javax.annotation.processing.Processor;
+
 import javax.tools.Diagnostic;
 import javax.tools.Diagnostic.Kind;
 import javax.tools.DiagnosticListener;
@@ -7,12 +11,14 @@ import javax.tools.JavaCompiler;
 import javax.tools.JavaCompiler.CompilationTask;
 import javax.tools.JavaFileObject;
 import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.function.Predicate;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
 import static java.util.stream.Collectors.toList;
@@ -122,11 +128,51 @@ class AbstractAnnotationProcessorTest {
     }
 
     private final List<DiagnosticMatch> diagnostics = new ArrayList<>();
+    private final List<String> options = new ArrayList<>(asList("-Xlint:all", "-source", "8", "-target", "8"));
     private PackageDependenciesAnnotationProcessor pdap = new PackageDependenciesAnnotationProcessor();
+    private ClassLoader listenerClassLoader = pdap.listenerClassLoader;
+    private NoOutputFileManager fileManager;
 
     StringJavaFileObject file(String file, String source) { return new StringJavaFileObject(Paths.get(file), source); }
 
+    /** Pass an annotation processor option to the next compilations */
+    void option(String name, String value) { options.add("-A" + name + "=" + value); }
+
+    /** Pass a compiler option, e.g. <code>-proc:only</code>, to the next compilations */
+    void compilerOption(String option) { options.add(option); }
+
+    /** Find the {@link DependencyListener}s of the next compilations with this class loader */
+    void listenerClassLoader(ClassLoader classLoader) {
+        this.listenerClassLoader = classLoader;
+        pdap.listenerClassLoader = classLoader;
+    }
+
     void compile(JavaFileObject... compilationUnits) {
+        CompilationTask task = task(compilationUnits);
+        task.setProcessors(singletonList(pdap));
+        task.call();
+    }
+
+    /** Compile with another annotation processor, e.g. one that generates sources for another round */
+    void compileWith(Processor processor, JavaFileObject... compilationUnits) {
+        CompilationTask task = task(compilationUnits);
+        task.setProcessors(asList(processor, pdap)); // it must see the annotations before we claim them
+        task.call();
+    }
+
+    /** Compile with the {@link PackageDependenciesPlugin}, which silences the annotation processor */
+    void compileWithPlugin(JavaFileObject... compilationUnits) { compileWithPlugin(new String[0], compilationUnits); }
+
+    void compileWithPlugin(String[] pluginArgs, JavaFileObject... compilationUnits) {
+        CompilationTask task = task(compilationUnits);
+        task.setProcessors(singletonList(pdap));
+        PackageDependenciesPlugin plugin = new PackageDependenciesPlugin();
+        plugin.listenerClassLoader = listenerClassLoader;
+        plugin.init((JavacTask) task, pluginArgs);
+        task.call();
+    }
+
+    private CompilationTask task(JavaFileObject... compilationUnits) {
         DiagnosticListener<JavaFileObject> diagnosticListener = diagnostic -> {
             System.out.println(diagnostic.getKind() + " [" + diagnostic.getCode() + "] " + diagnostic.getMessage(null)
                 + ((diagnostic.getSource() == null) ? ""
@@ -134,12 +180,15 @@ class AbstractAnnotationProcessorTest {
             diagnostics.add(new DiagnosticMatch(diagnostic));
         };
         JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-        NoOutputFileManager fileManager = new NoOutputFileManager(compiler.getStandardFileManager(diagnosticListener, null, null));
+        fileManager = new NoOutputFileManager(compiler.getStandardFileManager(diagnosticListener, null, null));
 
-        CompilationTask task = compiler.getTask(null, fileManager, diagnosticListener, asList("-Xlint:all", "-source", "8", "-target", "8"),
-            null, asList(compilationUnits));
-        task.setProcessors(singletonList(pdap));
-        task.call();
+        return compiler.getTask(null, fileManager, diagnosticListener, options, null, asList(compilationUnits));
+    }
+
+    /** The content of a resource written by the last compilation, or <code>null</code> if there is none */
+    String resource(String relativeName) {
+        ByteArrayOutputStream out = fileManager.resources.get(relativeName);
+        return (out == null) ? null : new String(out.toByteArray(), UTF_8);
     }
 
 
@@ -156,6 +205,16 @@ class AbstractAnnotationProcessorTest {
         assertThat(expectedList).isEmpty();
     }
 
+    /** Check that no diagnostic starts with this prefix; call before {@link #expect(DiagnosticMatch...)}, as that consumes them */
+    void expectNoMessageStartingWith(String prefix) {
+        assertThat(diagnostics).noneMatch(diagnostic -> diagnostic.message.startsWith(prefix));
+    }
+
+    /** The messages of all kinds starting with the prefix, e.g. to check that a note is reported only once; call before {@link #expect(DiagnosticMatch...)} */
+    List<String> messagesStartingWith(String prefix) {
+        return diagnostics.stream().map(diagnostic -> diagnostic.message).filter(message -> message.startsWith(prefix)).collect(toList());
+    }
+
     private boolean isError(DiagnosticMatch diagnostic) { return is(diagnostic, Kind.ERROR); }
 
     private boolean isWarning(DiagnosticMatch diagnostic) { return is(diagnostic, Kind.WARNING, Kind.MANDATORY_WARNING); }
@@ -197,8 +256,10 @@ class AbstractAnnotationProcessorTest {
     }
 
 
-    DiagnosticMatch note(String message) {
-        return new DiagnosticMatch(Kind.NOTE, null, -1, -1, -1, -1, -1,
+    DiagnosticMatch note(String message) { return note(null, -1, -1, -1, -1, -1, message); }
+
+    DiagnosticMatch note(String source, long position, long startPosition, long endPosition, long lineNumber, long columnNumber, String message) {
+        return new DiagnosticMatch(Kind.NOTE, source, position, startPosition, endPosition, lineNumber, columnNumber,
             "compiler.note.proc.messager", message);
     }
 }
@@ -0,0 +1,93 @@
+package com.github.t1.pdap;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CompilationGraphTest {
+    private final CompilationGraph graph = new CompilationGraph();
+
+    private void allow(String source, String... targets) {
+        for (String target : targets)
+            graph.allow(source, target);
+    }
+
+    @Test void shouldFindNoCycleWithoutCycles() {
+        allow("a", "b", "c");
+        allow("b", "c");
+
+        assertThat(graph.cycles()).isEmpty();
+    }
+
+    @Test void shouldNotReportSelfLoopAsCycle() {
+        allow("a", "a", "b");
+        allow("b", "b");
+
+        assertThat(graph.cycles()).isEmpty();
+    }
+
+    @Test void shouldFindCycleThroughFirstPackage() {
+        allow("c", "a");
+        allow("a", "b");
+        allow("b", "c");
+
+        assertThat(graph.cycles()).containsExactly(asList("a", "b", "c"));
+    }
+
+    @Test void shouldFindShortestCycle() {
+        allow("a", "b", "x");
+        allow("b", "c", "a");
+        allow("c", "d");
+        allow("d", "a");
+        allow("x", "a");
+
+        assertThat(graph.cycles()).containsExactly(asList("a", "b"));
+    }
+
+    @Test void shouldFindShortestCycleThroughFirstPackageOfNestedCycles() {
+        allow("a", "b");
+        allow("b", "c");
+        allow("c", "d", "e");
+        allow("d", "c"); // within: not through a
+        allow("e", "a");
+
+        assertThat(graph.cycles()).containsExactly(asList("a", "b", "c", "e"));
+    }
+
+    @Test void shouldFindOneCycleForOverlappingCycles() {
+        allow("a", "b");
+        allow("b", "a", "c");
+        allow("c", "d");
+        allow("d", "b");
+
+        assertThat(graph.cycles()).containsExactly(asList("a", "b"));
+    }
+
+    @Test void shouldNotLeaveTheComponent() {
+        allow("a", "b", "x");
+        allow("b", "c");
+        allow("c", "a");
+        allow("x", "y");
+        allow("y", "x");
+
+        assertThat(graph.cycles()).containsExactly(asList("a", "b", "c"), asList("x", "y"));
+    }
+
+    @Test void shouldFindLongChainCycle() {
+        int size = 50_000;
+        for (int i = 0; i < size; i++)
+            allow(name(i), name((i + 1) % size));
+
+        List<List<String>> cycles = graph.cycles();
+
+        assertThat(cycles).hasSize(1);
+        assertThat(cycles.get(0)).hasSize(size);
+        assertThat(cycles.get(0).get(0)).isEqualTo(name(0));
+        assertThat(cycles.get(0).get(size - 1)).isEqualTo(name(size - 1));
+    }
+
+    private static String name(int i) { return String.format("p%06d", i); }
+}
@@ -6,13 +6,33 @@ import javax.tools.JavaFileObject;
 import javax.tools.JavaFileObject.Kind;
 import javax.tools.SimpleJavaFileObject;
 import javax.tools.StandardJavaFileManager;
+import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 class NoOutputFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+    /** The resources written, e.g. the exported dependencies, by their relative name */
+    final Map<String, ByteArrayOutputStream> resources = new HashMap<>();
+
     NoOutputFileManager(StandardJavaFileManager fileManager) { super(fileManager); }
 
+    @Override public FileObject getFileForOutput(Location location, String packageName, String relativeName, FileObject sibling) {
+        return new SimpleJavaFileObject(URI.create("string:///" + relativeName), Kind.OTHER) {
+            @Override public OutputStream openOutputStream() {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                resources.put(relativeName, out);
+                return out;
+            }
+        };
+    }
+
     @Override public JavaFileObject getJavaFileForOutput(Location location, String className, Kind kind, FileObject sibling) {
+        if (kind == Kind.SOURCE) // generated by another processor, and compiled in the next round
+            return new GeneratedSourceFileObject(URI.create("string:///" + className.replace('.', '/') + kind.extension));
         return new NoOutputJavaFileObject(URI.create("string:///" + className.replace('.', '/') + kind.extension), kind);
     }
 
@@ -20,6 +40,19 @@ class NoOutputFileManager extends ForwardingJavaFileManager<StandardJavaFileMana
         return a.toUri().equals(b.toUri());
     }
 
+    private static final class GeneratedSourceFileObject extends SimpleJavaFileObject {
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        GeneratedSourceFileObject(URI uri) { super(uri, Kind.SOURCE); }
+
+        @Override public OutputStream openOutputStream() {
+            content.reset();
+            return content;
+        }
+
+        @Override public CharSequence getCharContent(boolean ignoreEncodingErrors) { return new String(content.toByteArray(), UTF_8); }
+    }
+
     private static final class NoOutputJavaFileObject extends SimpleJavaFileObject {
         NoOutputJavaFileObject(URI uri, Kind kind) { super(uri, kind); }
 
@@ -1,12 +1,33 @@
 package com.github.t1.pdap;
 
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
 import java.util.stream.Stream;
 
+import static java.util.Collections.enumeration;
+import static java.util.Collections.singletonList;
 import static java.util.stream.Collectors.joining;
+import static org.assertj.core.api.Assertions.assertThat;
 
 class PackageDependenciesAnnotationProcessorTest extends AbstractAnnotationProcessorTest {
     private void compileSource(String source) {
@@ -240,6 +261,29 @@ class PackageDependenciesAnnotationProcessorTest extends AbstractAnnotationProce
                     "compiler.warn.proc.messager", "Unused dependency on [target]")
             );
         }
+
+        @Test void shouldNotWarnAboutDependencyUsedByOnlyOneOfTwoClasses() {
+            compile(
+                packageInfo("source", "target"),
+                file("source/Source1.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "public class Source1 {\n" +
+                    "}\n"),
+                file("source/Source2.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source2 {\n" +
+                    "    private Target target;\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect();
+        }
     }
 
     @Nested class ImportedDependencies {
@@ -272,6 +316,29 @@ class PackageDependenciesAnnotationProcessorTest extends AbstractAnnotationProce
             );
         }
 
+        @Test void shouldNotReportErrorForFieldWithAllowedNestedTypeDependency() {
+            compile(
+                packageInfo("source", "target"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target.Nested;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Nested nested;\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                file("target/Target.java", "" +
+                    "package target;\n" +
+                    "\n" +
+                    "public class Target {\n" +
+                    "    public static class Nested {}\n" +
+                    "}\n"));
+
+            expect();
+        }
+
         @Test void shouldReportErrorForSecondClassInCompilationUnitWithFieldWithForbiddenDependency() {
             compileForbiddenSource("" +
                 "package source;\n" +
@@ -332,7 +399,7 @@ class PackageDependenciesAnnotationProcessorTest extends AbstractAnnotationProce
             );
         }
 
-        @Disabled @Test void shouldReportErrorForWildcardImportedStaticEnumValueWithForbiddenDependency() {
+        @Test void shouldReportErrorForWildcardImportedStaticEnumValueWithForbiddenDependency() {
             compile(
                 packageInfo("source"),
                 file("source/Source.java", "" +
@@ -348,7 +415,23 @@ class PackageDependenciesAnnotationProcessorTest extends AbstractAnnotationProce
                 targetEnum());
 
             expect(
-                error("/source/Source.java", 92, 77, 105, 6, 20,
+                error("/source/Source.java", 90, 75, 103, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+        }
+
+        @Test void shouldReportErrorForWildcardImportedFieldWithForbiddenDependency() {
+            compileForbiddenSource("" +
+                "package source;\n" +
+                "\n" +
+                "import target.*;\n" +
+                "\n" +
+                "public class Source {\n" +
+                "    private Target target;\n" +
+                "}\n");
+
+            expect(
+                error("/source/Source.java", 76, 61, 83, 6, 20,
                     "compiler.err.proc.messager", "Forbidden dependency on [target]")
             );
         }
@@ -555,6 +638,35 @@ class PackageDependenciesAnnotationProcessorTest extends AbstractAnnotationProce
             );
         }
 
+        @Test void shouldReportErrorAboutForbiddenRepeatedStaticMethodInvocationWithVariableArgument() {
+            compile(
+                packageInfo("source"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private void foo(String s) {\n" +
+                    "        Target.bar(s);\n" +
+                    "        Target.bar(s);\n" +
+                    "    }\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                file("target/Target.java", "" +
+                    "package target;\n" +
+                    "\n" +
+                    "public class Target {\n" +
+                    "    public static void bar(String s) {}\n" +
+                    "}\n"));
+
+            expect(
+                error("/source/Source.java", 79, 66, 146, 6, 18,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+        }
+
         @Test void shouldReportErrorAboutForbiddenStaticMethodInvocationToNonCompiledClassSameType() {
             compile(
                 packageInfo("source"),
@@ -1108,6 +1220,46 @@ class PackageDependenciesAnnotationProcessorTest extends AbstractAnnotationProce
             expect();
         }
 
+        @Test void shouldNotReportErrorAboutDeepSubPackageMergingSuperPackageDependencies() {
+            compile(
+                packageInfo("source", "target1"),
+                packageInfo("source.sub1.sub2", "target2"),
+                file("source/sub1/sub2/sub3/Source.java", "" +
+                    "package source.sub1.sub2.sub3;\n" +
+                    "\n" +
+                    "import target1.Target1;\n" +
+                    "import target2.Target2;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target1 target1;\n" +
+                    "    private Target2 target2;\n" +
+                    "}\n"),
+                file("source/sub1/sub2/Source.java", "" +
+                    "package source.sub1.sub2;\n" +
+                    "\n" +
+                    "import target2.Target2;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target2 target2;\n" +
+                    "}\n"),
+
+                packageInfo("target1"),
+                file("target1/Target1.java", "" +
+                    "package target1;\n" +
+                    "\n" +
+                    "public interface Target1 {\n" +
+                    "}\n"),
+
+                packageInfo("target2"),
+                file("target2/Target2.java", "" +
+                    "package target2;\n" +
+                    "\n" +
+                    "public interface Target2 {\n" +
+                    "}\n"));
+
+            expect();
+        }
+
         @Test void shouldNotReportErrorAboutUnusedSuperPackageDependency() {
             compile(
                 packageInfo("source", "target1"),
@@ -1139,6 +1291,191 @@ class PackageDependenciesAnnotationProcessorTest extends AbstractAnnotationProce
         }
     }
 
+    @Nested class WildcardDependencies {
+        private StringJavaFileObject sourceUsing(String... targets) {
+            StringBuilder imports = new StringBuilder();
+            StringBuilder fields = new StringBuilder();
+            for (int i = 0; i < targets.length; i++) {
+                imports.append("import ").append(targets[i]).append(".Target").append(i).append(";\n");
+                fields.append("    private Target").append(i).append(" target").append(i).append(";\n");
+            }
+            return file("source/Source.java", "" +
+                "package source;\n" +
+                "\n" +
+                imports +
+                "\n" +
+                "public class Source {\n" +
+                fields +
+                "}\n");
+        }
+
+        private StringJavaFileObject target(String packageName, int i) {
+            return file(packageName.replace('.', '/') + "/Target" + i + ".java", "" +
+                "package " + packageName + ";\n" +
+                "\n" +
+                "public interface Target" + i + " {\n" +
+                "}\n");
+        }
+
+        @Test void shouldNotReportErrorAboutDependenciesMatchingAnySegmentsWildcard() {
+            compile(
+                packageInfo("source", "**.controller"),
+                sourceUsing("controller", "app.controller", "app.order.controller"),
+                packageInfo("controller"),
+                target("controller", 0),
+                packageInfo("app.controller"),
+                target("app.controller", 1),
+                packageInfo("app.order.controller"),
+                target("app.order.controller", 2));
+
+            expect();
+        }
+
+        @Test void shouldNotReportErrorAboutDependenciesMatchingSingleSegmentWildcard() {
+            compile(
+                packageInfo("source", "app.*.controller"),
+                sourceUsing("app.order.controller", "app.customer.controller"),
+                packageInfo("app.order.controller"),
+                target("app.order.controller", 0),
+                packageInfo("app.customer.controller"),
+                target("app.customer.controller", 1));
+
+            expect();
+        }
+
+        @Test void shouldNotReportErrorAboutDependenciesMatchingSubpackagesWildcard() {
+            compile(
+                packageInfo("source", "target+"),
+                sourceUsing("target", "target.sub", "target.sub.subsub"),
+                packageInfo("target"),
+                target("target", 0),
+                packageInfo("target.sub"),
+                target("target.sub", 1),
+                packageInfo("target.sub.subsub"),
+                target("target.sub.subsub", 2));
+
+            expect();
+        }
+
+        @Test void shouldNotReportErrorAboutDependencyMatchingSuperPackageWildcard() {
+            compile(
+                packageInfo("source", "**.controller"),
+                packageInfo("source.sub", "target"),
+                file("source/sub/Source.java", "" +
+                    "package source.sub;\n" +
+                    "\n" +
+                    "import target.Target0;\n" +
+                    "import app.controller.Target1;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target0 target0;\n" +
+                    "    private Target1 target1;\n" +
+                    "}\n"),
+                packageInfo("target"),
+                target("target", 0),
+                packageInfo("app.controller"),
+                target("app.controller", 1));
+
+            expect();
+        }
+
+        @Test void shouldReportErrorAboutDependencyNotMatchingWildcard() {
+            compile(
+                packageInfo("source", "**.controller"),
+                sourceUsing("app.controller", "app.controller.sub"),
+                packageInfo("app.controller"),
+                target("app.controller", 0),
+                packageInfo("app.controller.sub"),
+                target("app.controller.sub", 1));
+
+            expect(
+                error("/source/Source.java", 155, 139, 163, 8, 21,
+                    "compiler.err.proc.messager", "Forbidden dependency on [app.controller.sub]")
+            );
+        }
+
+        @Test void shouldWarnAboutUnusedWildcard() {
+            compile(
+                packageInfo("source", "target+"),
+                sourceUsing(),
+                packageInfo("target"),
+                target("target", 0));
+
+            expect(
+                warning("/source/package-info.java", 0, 0, 95, 1, 1,
+                    "compiler.warn.proc.messager", "Unused dependency on [target+]")
+            );
+        }
+    }
+
+    @Nested class ParentVariable {
+        private StringJavaFileObject boundary(String slice, String... controllerSlices) {
+            StringBuilder imports = new StringBuilder();
+            StringBuilder fields = new StringBuilder();
+            for (String controllerSlice : controllerSlices) {
+                imports.append("import app.").append(controllerSlice).append(".controller.").append(controller(controllerSlice)).append(";\n");
+                fields.append("    private ").append(controller(controllerSlice)).append(" ").append(controllerSlice).append(";\n");
+            }
+            return file("app/" + slice + "/boundary/Boundary.java", "" +
+                "package app." + slice + ".boundary;\n" +
+                "\n" +
+                imports +
+                "\n" +
+                "public class Boundary {\n" +
+                fields +
+                "}\n");
+        }
+
+        private String controller(String slice) { return Character.toUpperCase(slice.charAt(0)) + slice.substring(1) + "Controller"; }
+
+        private StringJavaFileObject controllerClass(String slice) {
+            return file("app/" + slice + "/controller/" + controller(slice) + ".java", "" +
+                "package app." + slice + ".controller;\n" +
+                "\n" +
+                "public class " + controller(slice) + " {\n" +
+                "}\n");
+        }
+
+        @Test void shouldNotReportErrorAboutDependencyOnSibling() {
+            compile(
+                packageInfo("app.order.boundary", "${parent}.controller"),
+                boundary("order", "order"),
+
+                packageInfo("app.order.controller"),
+                controllerClass("order"));
+
+            expect();
+        }
+
+        @Test void shouldWarnAboutUnusedDependencyOnSibling() {
+            compile(
+                packageInfo("app.order.boundary", "${parent}.controller"),
+                boundary("order"),
+
+                packageInfo("app.order.controller"),
+                controllerClass("order"));
+
+            expect(
+                warning("/app/order/boundary/package-info.java", 0, 0, 120, 1, 1,
+                    "compiler.warn.proc.messager", "Unused dependency on [app.order.controller]")
+            );
+        }
+
+        @Test void shouldResolveSuperPackageParentVariableForEachSubPackage() {
+            compile(
+                packageInfo("app", "${parent}.controller"),
+                boundary("order", "order"),
+                boundary("customer", "customer", "order"),
+                controllerClass("order"),
+                controllerClass("customer"));
+
+            expect(
+                error("/app/customer/boundary/Boundary.java", 222, 198, 228, 8, 29,
+                    "compiler.err.proc.messager", "Forbidden dependency on [app.order.controller]")
+            );
+        }
+    }
+
     @Nested class IndirectDependencies {
         @Test void shouldNotReportErrorAboutAllowedIndirectDependency() {
             compile(
@@ -1453,4 +1790,1642 @@ class PackageDependenciesAnnotationProcessorTest extends AbstractAnnotationProce
             );
         }
     }
+
+    @Nested class PluginDependencies {
+        @Test void shouldNotReportErrorForFieldWithAllowedDependency() {
+            compileWithPlugin(
+                packageInfo("source", "target"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target target;\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect();
+        }
+
+        @Test void shouldReportErrorForFieldWithForbiddenDependency() {
+            compileWithPlugin(
+                packageInfo("source"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target target;\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect(
+                error("/source/Source.java", 81, 66, 88, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+        }
+
+        @Test void shouldWarnAboutUnusedAndMissingDependencies() {
+            compileWithPlugin(
+                packageInfo("source", "target"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "}\n"),
+
+                file("target/Target.java", "" +
+                    "package target;\n" +
+                    "\n" +
+                    "public class Target {\n" +
+                    "}\n"));
+
+            expect(
+                warning("/source/package-info.java", 0, 0, 94, 1, 1,
+                    "compiler.warn.proc.messager", "Unused dependency on [target]"),
+                warning("no @AllowDependenciesOn annotation")
+            );
+        }
+
+        @Test void shouldReportErrorAboutForbiddenIndirectDependency() {
+            compileWithPlugin(
+                packageInfo("source", "target1"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target1.Target1;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private void foo() { Object target2 = new Target1().target2(); }\n" +
+                    "}\n"),
+
+                packageInfo("target1", "target2"),
+                file("target1/Target1.java", "" +
+                    "package target1;\n" +
+                    "\n" +
+                    "import target2.Target2;\n" +
+                    "\n" +
+                    "public class Target1 {\n" +
+                    "    public Target2 target2() { return null; }\n" +
+                    "}\n"),
+
+                packageInfo("target2"),
+                file("target2/Target2.java", "" +
+                    "package target2;\n" +
+                    "\n" +
+                    "public class Target2 {\n" +
+                    "}\n"));
+
+            expect(
+                error("/source/Source.java", 81, 68, 132, 6, 18,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target2]")
+            );
+        }
+
+        @Test void shouldReportErrorAboutForbiddenIndirectDependencyOnVariable() {
+            compileWithPlugin(
+                packageInfo("source", "target1"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target1.Target1;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private void foo(Target1 target1) { Object target2 = target1.target2(); }\n" +
+                    "}\n"),
+
+                packageInfo("target1", "target2"),
+                file("target1/Target1.java", "" +
+                    "package target1;\n" +
+                    "\n" +
+                    "import target2.Target2;\n" +
+                    "\n" +
+                    "public class Target1 {\n" +
+                    "    public Target2 target2() { return null; }\n" +
+                    "}\n"),
+
+                packageInfo("target2"),
+                file("target2/Target2.java", "" +
+                    "package target2;\n" +
+                    "\n" +
+                    "public class Target2 {\n" +
+                    "}\n"));
+
+            expect(
+                error("/source/Source.java", 81, 68, 141, 6, 18,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target2]")
+            );
+        }
+
+        @Test void shouldNotReportErrorAboutForbiddenAnnotation() {
+            compileWithPlugin(
+                packageInfo("source"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "@Target(\"foo\")\n" +
+                    "public class Source {\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetAnnotation());
+
+            expect(
+                warning("compiler.warn.proc.annotations.without.processors", "No processor claimed any of these annotations: target.Target")
+            );
+        }
+    }
+
+    @Nested class AdaptiveAnalysis {
+        @BeforeEach void setUp() { option("pdap.analysis", "adaptive"); }
+
+        @Test void shouldNotReportErrorForFieldWithAllowedDependency() {
+            compileSource("" +
+                "package source;\n" +
+                "\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "public class Source {\n" +
+                "    private Target target;\n" +
+                "}\n");
+
+            expect();
+        }
+
+        @Test void shouldReportErrorForFieldWithForbiddenDependency() {
+            compileForbiddenSource("" +
+                "package source;\n" +
+                "\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "public class Source {\n" +
+                "    private Target target;\n" +
+                "}\n");
+
+            expect(
+                error("/source/Source.java", 81, 66, 88, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+        }
+
+        @Test void shouldNotWarnAboutClassWithUnusedImport() {
+            compileSource("" +
+                "package source;\n" +
+                "\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "public class Source{\n" +
+                "}\n");
+
+            expect();
+        }
+
+        @Test void shouldReportErrorAboutForbiddenIndirectDependency() {
+            compile(
+                packageInfo("source", "target1"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target1.Target1;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private void foo() { Object target2 = new Target1().target2(); }\n" +
+                    "}\n"),
+
+                packageInfo("target1", "target2"),
+                file("target1/Target1.java", "" +
+                    "package target1;\n" +
+                    "\n" +
+                    "import target2.Target2;\n" +
+                    "\n" +
+                    "public class Target1 {\n" +
+                    "    public Target2 target2() { return null; }\n" +
+                    "}\n"),
+
+                packageInfo("target2"),
+                file("target2/Target2.java", "" +
+                    "package target2;\n" +
+                    "\n" +
+                    "public class Target2 {\n" +
+                    "}\n"));
+
+            expect(
+                error("/source/Source.java", 81, 68, 132, 6, 18,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target2]")
+            );
+        }
+
+        @Test void shouldReportErrorForInvalidOption() {
+            option("pdap.analysis", "foo");
+
+            compileSource("" +
+                "package source;\n" +
+                "\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "public class Source {\n" +
+                "    private Target target;\n" +
+                "}\n");
+
+            expect(
+                error("Invalid pdap.analysis [foo]: expected one of [full, adaptive]")
+            );
+        }
+    }
+
+    @Nested class IgnoredPackageDependencies {
+        @Test void shouldNotReportErrorForIgnoredJdkDependency() {
+            option("pdap.ignore", "JDK");
+
+            compile(
+                packageInfo("source"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import java.util.List;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private List<?> list;\n" +
+                    "}\n"));
+
+            expect();
+        }
+
+        @Test void shouldReportErrorForLibraryInComSunWhenIgnoringJdk() {
+            option("pdap.ignore", "JDK");
+
+            compile(
+                packageInfo("source"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import com.sun.jersey.Client;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Client client;\n" +
+                    "}\n"),
+
+                file("com/sun/jersey/Client.java", "" +
+                    "package com.sun.jersey;\n" +
+                    "\n" +
+                    "public class Client {\n" +
+                    "}\n"));
+
+            expect(
+                error("/source/Source.java", 89, 74, 96, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [com.sun.jersey]"),
+                warning("no @AllowDependenciesOn annotation")
+            );
+        }
+
+        @Test void shouldNotWarnAboutUnusedIgnoredDependency() {
+            option("pdap.ignore", "JDK");
+
+            compile(
+                packageInfo("source", "java.util"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "}\n"));
+
+            expect();
+        }
+
+        @Test void shouldNotReportErrorForIgnoredPrefix() {
+            option("pdap.ignore", "foo, target");
+
+            compileForbiddenSource("" +
+                "package source;\n" +
+                "\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "public class Source {\n" +
+                "    private Target target;\n" +
+                "}\n");
+
+            expect();
+        }
+
+        @Test void shouldReportErrorForPackageOnlyStartingWithIgnoredPrefix() {
+            option("pdap.ignore", "targ");
+
+            compileForbiddenSource("" +
+                "package source;\n" +
+                "\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "public class Source {\n" +
+                "    private Target target;\n" +
+                "}\n");
+
+            expect(
+                error("/source/Source.java", 81, 66, 88, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+        }
+
+        @Test void shouldNotReportErrorForIgnoredPrefixInPlugin() {
+            compileWithPlugin(new String[]{"pdap.ignore=target"},
+                packageInfo("source"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target target;\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect();
+        }
+    }
+
+    @Nested class ExcludedSourceDependencies {
+        private static final String FORBIDDEN_SOURCE = "" +
+            "package source;\n" +
+            "\n" +
+            "import target.Target;\n" +
+            "\n" +
+            "public class Source {\n" +
+            "    private Target target;\n" +
+            "}\n";
+
+        @Test void shouldSkipGeneratedType() {
+            compileForbiddenSource("" +
+                "package source;\n" +
+                "\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "@javax.annotation.Generated(\"test\")\n" +
+                "public class Source {\n" +
+                "    private Target target;\n" +
+                "}\n");
+
+            expect(
+                warning("compiler.warn.proc.annotations.without.processors", "No processor claimed any of these annotations: javax.annotation.Generated")
+            );
+        }
+
+        @Test void shouldCheckGeneratedTypeWhenNotExcluded() {
+            option("pdap.excludeGenerated", "false");
+
+            compileForbiddenSource("" +
+                "package source;\n" +
+                "\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "@javax.annotation.Generated(\"test\")\n" +
+                "public class Source {\n" +
+                "    private Target target;\n" +
+                "}\n");
+
+            expect(
+                warning("compiler.warn.proc.annotations.without.processors", "No processor claimed any of these annotations: javax.annotation.Generated"),
+                error("/source/Source.java", 117, 102, 124, 7, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+        }
+
+        @Test void shouldSkipTypeInExcludedPackage() {
+            option("pdap.exclude", "foo, sou*");
+
+            compileForbiddenSource(FORBIDDEN_SOURCE);
+
+            expect(
+                error("/source/Source.java", 81, 66, 88, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+        }
+
+        @Test void shouldSkipTypeInExcludedPackagePattern() {
+            option("pdap.exclude", "foo, *");
+
+            compileForbiddenSource(FORBIDDEN_SOURCE);
+
+            expect();
+        }
+
+        @Test void shouldSkipTypeInExcludedPath() {
+            option("pdap.excludePaths", "**/foo/**, /{source,other}/*.java");
+
+            compileForbiddenSource(FORBIDDEN_SOURCE);
+
+            expect();
+        }
+
+        @Test void shouldCheckTypeNotInExcludedPath() {
+            option("pdap.excludePaths", "**/generated/**");
+
+            compileForbiddenSource(FORBIDDEN_SOURCE);
+
+            expect(
+                error("/source/Source.java", 81, 66, 88, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+        }
+
+        @Test void shouldSkipTypeInExcludedPackageInPlugin() {
+            compileWithPlugin(new String[]{"pdap.exclude=source"},
+                packageInfo("source"),
+                file("source/Source.java", FORBIDDEN_SOURCE),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect();
+        }
+    }
+
+    @Nested class BootstrapDependencies {
+        private void compileSourceWithoutPolicy() {
+            compile(
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import other.Other;\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target target;\n" +
+                    "    private Other other;\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface(),
+
+                packageInfo("other"),
+                file("other/Other.java", "" +
+                    "package other;\n" +
+                    "\n" +
+                    "public class Other {\n" +
+                    "}\n"));
+        }
+
+        @Test void shouldNotReportInferredDependenciesWithoutBootstrap() {
+            compileSourceWithoutPolicy();
+
+            expectNoMessageStartingWith("inferred");
+            expect(
+                warning("no @AllowDependenciesOn annotation")
+            );
+        }
+
+        @Test void shouldReportInferredDependenciesWithBootstrap() {
+            option("pdap.bootstrap", "true");
+
+            compileSourceWithoutPolicy();
+
+            expect(
+                warning("no @AllowDependenciesOn annotation"),
+                note("inferred @AllowDependenciesOn({\"other\", \"target\"})")
+            );
+        }
+
+        @Test void shouldReportInferredDependenciesWithBootstrapInPlugin() {
+            compileWithPlugin(new String[]{"pdap.bootstrap=true"},
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target target;\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect(
+                warning("no @AllowDependenciesOn annotation"),
+                note("inferred @AllowDependenciesOn({\"target\"})")
+            );
+        }
+    }
+
+    @Nested class UsageCounts {
+        private final StringJavaFileObject source = file("source/Source.java", "" +
+            "package source;\n" +
+            "\n" +
+            "import other.Other;\n" +
+            "import target.Target;\n" +
+            "\n" +
+            "public class Source {\n" +
+            "    private Target target;\n" +
+            "    private Other other;\n" +
+            "\n" +
+            "    private Target target(Target target) { return target; }\n" +
+            "}\n");
+        private final StringJavaFileObject other = file("other/Other.java", "" +
+            "package other;\n" +
+            "\n" +
+            "public class Other {\n" +
+            "}\n");
+
+        @Test void shouldNoteUsages() {
+            option("pdap.usages", "true");
+
+            compile(
+                packageInfo("source", "other"),
+                source,
+
+                packageInfo("target"),
+                targetInterface(),
+
+                packageInfo("other"),
+                other);
+
+            expect(
+                error("/source/Source.java", 101, 86, 108, 7, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]"),
+                note("/source/package-info.java", 0, 0, 93, 1, 1, "forbidden dependency on [target]: used 3 times by 3 elements"),
+                note("/source/package-info.java", 0, 0, 93, 1, 1, "primary dependency on [other]: used 1 time by 1 element")
+            );
+        }
+
+        @Test void shouldNoteUsagesInPlugin() {
+            compileWithPlugin(new String[]{"pdap.usages=true"},
+                packageInfo("source", "other"),
+                source,
+
+                packageInfo("target"),
+                targetInterface(),
+
+                packageInfo("other"),
+                other);
+
+            expect(
+                error("/source/Source.java", 101, 86, 108, 7, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]"),
+                note("/source/package-info.java", 0, 0, 93, 1, 1, "forbidden dependency on [target]: used 3 times by 2 elements"),
+                note("/source/package-info.java", 0, 0, 93, 1, 1, "primary dependency on [other]: used 1 time by 1 element")
+            );
+        }
+
+        @Test void shouldCountEachReference() {
+            option("pdap.usages", "true");
+
+            compile(
+                packageInfo("source"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private void target() {\n" +
+                    "        Target first = null;\n" +
+                    "        Target second = first;\n" +
+                    "        Target third = second;\n" +
+                    "    }\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect(
+                error("/source/Source.java", 79, 66, 186, 6, 18,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]"),
+                note("/source/package-info.java", 0, 0, 86, 1, 1, "forbidden dependency on [target]: used 3 times by 1 element")
+            );
+        }
+    }
+
+    @Nested class ForbiddenDependencySites {
+        private void compileSourcesWithForbiddenDependencies() {
+            compile(
+                packageInfo("source"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target target;\n" +
+                    "\n" +
+                    "    private void target(Target target) {}\n" +
+                    "}\n"),
+                file("source/Source2.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source2 {\n" +
+                    "    private Target target;\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+        }
+
+        @Test void shouldNoteAllSites() {
+            compileSourcesWithForbiddenDependencies();
+
+            expect(
+                error("/source/Source.java", 81, 66, 88, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]"),
+                note("/source/Source.java", 81, 66, 88, 6, 20, "forbidden dependency on [target] at /source/Source.java:6:13"),
+                note("/source/Source.java", 81, 66, 88, 6, 20, "forbidden dependency on [target] at /source/Source.java:8:25"),
+                note("/source/Source.java", 81, 66, 88, 6, 20, "forbidden dependency on [target] at /source/Source2.java:6:13")
+            );
+        }
+
+        @Test void shouldNoteLimitedSites() {
+            option("pdap.sites", "1");
+
+            compileSourcesWithForbiddenDependencies();
+
+            expect(
+                error("/source/Source.java", 81, 66, 88, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]"),
+                note("/source/Source.java", 81, 66, 88, 6, 20, "forbidden dependency on [target] at /source/Source.java:6:13"),
+                note("/source/Source.java", 81, 66, 88, 6, 20, "forbidden dependency on [target] at 2 more sites")
+            );
+        }
+
+        @Test void shouldNoteEachReference() {
+            compile(
+                packageInfo("source"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target target;\n" +
+                    "\n" +
+                    "    private void target() {\n" +
+                    "        Target first = null;\n" +
+                    "        Target second = first;\n" +
+                    "        target.Target third = second;\n" +
+                    "    }\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            assertThat(messagesStartingWith("forbidden dependency on [target] at")).hasSize(4); // each only once
+            expect(
+                error("/source/Source.java", 81, 66, 88, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]"),
+                note("/source/Source.java", 81, 66, 88, 6, 20, "forbidden dependency on [target] at /source/Source.java:6:13"),
+                note("/source/Source.java", 81, 66, 88, 6, 20, "forbidden dependency on [target] at /source/Source.java:9:9"),
+                note("/source/Source.java", 81, 66, 88, 6, 20, "forbidden dependency on [target] at /source/Source.java:10:9"),
+                note("/source/Source.java", 81, 66, 88, 6, 20, "forbidden dependency on [target] at /source/Source.java:11:9")
+            );
+        }
+
+        @Test void shouldNotNoteSingleSite() {
+            compileForbiddenSource("" +
+                "package source;\n" +
+                "\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "public class Source {\n" +
+                "    private Target target;\n" +
+                "}\n");
+
+            expectNoMessageStartingWith("forbidden dependency on [target] at");
+            expect(
+                error("/source/Source.java", 81, 66, 88, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+        }
+
+        @Test void shouldNoteAllSitesInPlugin() {
+            compileWithPlugin(
+                packageInfo("source"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target target;\n" +
+                    "\n" +
+                    "    private void target(Target target) {}\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect(
+                error("/source/Source.java", 81, 66, 88, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]"),
+                note("/source/Source.java", 81, 66, 88, 6, 20, "forbidden dependency on [target] at /source/Source.java:6:13"),
+                note("/source/Source.java", 81, 66, 88, 6, 20, "forbidden dependency on [target] at /source/Source.java:8:25")
+            );
+        }
+
+        @Test void shouldReportInvalidSitesOption() {
+            option("pdap.sites", "x");
+
+            compileSourcesWithForbiddenDependencies();
+
+            expect(
+                error("Invalid pdap.sites [x]: expected a number"),
+                error("/source/Source.java", 81, 66, 88, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+        }
+
+        @Test void shouldReportInvalidSitesOptionInPlugin() {
+            compileWithPlugin(new String[]{"pdap.sites=x"},
+                packageInfo("source"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target target;\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect(
+                error("Invalid pdap.sites [x]: expected a number")
+            );
+        }
+    }
+
+    @Nested class DependencyCycles {
+        private final StringJavaFileObject source = file("source/Source.java", "" +
+            "package source;\n" +
+            "\n" +
+            "import target.Target;\n" +
+            "\n" +
+            "public class Source {\n" +
+            "    private Target target;\n" +
+            "}\n");
+        private final StringJavaFileObject target = file("target/Target.java", "" +
+            "package target;\n" +
+            "\n" +
+            "import source.Source;\n" +
+            "\n" +
+            "public class Target {\n" +
+            "    private Source source;\n" +
+            "}\n");
+
+        /** A class named like its package, e.g. <code>a.A</code>, using the class in the target package */
+        private StringJavaFileObject user(String packageName, String target) {
+            String name = packageName.toUpperCase();
+            String targetName = target.toUpperCase();
+            return file(packageName + "/" + name + ".java", "" +
+                "package " + packageName + ";\n" +
+                "\n" +
+                "import " + target + "." + targetName + ";\n" +
+                "\n" +
+                "public class " + name + " {\n" +
+                "    private " + targetName + " user;\n" +
+                "}\n");
+        }
+
+        @Test void shouldWarnAboutCycle() {
+            compile(
+                packageInfo("source", "target"),
+                source,
+
+                packageInfo("target", "source"),
+                target);
+
+            expect(
+                warning("/source/package-info.java", 0, 0, 94, 1, 1,
+                    "compiler.warn.proc.messager", "Dependency cycle [source] -> [target] -> [source]"),
+                note("/source/package-info.java", 0, 0, 94, 1, 1, "[source] -> [target] used at /source/Source.java:6:13"),
+                note("/source/package-info.java", 0, 0, 94, 1, 1, "[target] -> [source] used at /target/Target.java:6:13")
+            );
+        }
+
+        @Test void shouldWarnAboutCycleInPlugin() {
+            compileWithPlugin(
+                packageInfo("source", "target"),
+                source,
+
+                packageInfo("target", "source"),
+                target);
+
+            expect(
+                warning("/source/package-info.java", 0, 0, 94, 1, 1,
+                    "compiler.warn.proc.messager", "Dependency cycle [source] -> [target] -> [source]"),
+                note("/source/package-info.java", 0, 0, 94, 1, 1, "[source] -> [target] used at /source/Source.java:6:13"),
+                note("/source/package-info.java", 0, 0, 94, 1, 1, "[target] -> [source] used at /target/Target.java:6:13")
+            );
+        }
+
+        @Test void shouldWarnAboutShortestCycleThroughFirstPackage() {
+            compile(
+                packageInfo("a", "b"),
+                user("a", "b"),
+
+                packageInfo("b", "a", "c"),
+                user("b", "c"),
+
+                packageInfo("c", "a"),
+                user("c", "a"));
+
+            expect(
+                warning("/b/package-info.java", 0, 0, 91, 1, 1,
+                    "compiler.warn.proc.messager", "Unused dependency on [a]"),
+                warning("/a/package-info.java", 0, 0, 84, 1, 1,
+                    "compiler.warn.proc.messager", "Dependency cycle [a] -> [b] -> [a]"),
+                note("/a/package-info.java", 0, 0, 84, 1, 1, "[a] -> [b] used at /a/A.java:6:13"),
+                note("/a/package-info.java", 0, 0, 84, 1, 1, "[b] -> [a] allowed")
+            );
+        }
+    }
+
+    @Nested class TransitiveDependencies {
+        private StringJavaFileObject ruledPackageInfo(String packageName, String allowed, String forbiddenTransitive) {
+            return file(packageName.replace('.', '/') + "/package-info.java", "" +
+                ((allowed == null) ? "" : "@AllowDependenciesOn(\"" + allowed + "\")\n") +
+                "@ForbidTransitiveDependenciesOn(\"" + forbiddenTransitive + "\")\n" +
+                "package " + packageName + ";\n" +
+                "\n" +
+                "import com.github.t1.pdap.AllowDependenciesOn;\n" +
+                "import com.github.t1.pdap.ForbidTransitiveDependenciesOn;\n");
+        }
+
+        private StringJavaFileObject type(String packageName, String name, String target) {
+            return file(packageName.replace('.', '/') + "/" + name + ".java", "" +
+                "package " + packageName + ";\n" +
+                "\n" +
+                "import " + target + ";\n" +
+                "\n" +
+                "public class " + name + " {\n" +
+                "    private " + target.substring(target.lastIndexOf('.') + 1) + " target;\n" +
+                "}\n");
+        }
+
+        @Test void shouldReportForbiddenTransitiveDependency() {
+            compile(
+                ruledPackageInfo("source", "middle", "target"),
+                type("source", "Source", "middle.Middle"),
+
+                packageInfo("middle", "target"),
+                type("middle", "Middle", "target.Target"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect(
+                error("/source/package-info.java", 0, 0, 194, 1, 1, "compiler.err.proc.messager",
+                    "Forbidden transitive dependency on [target] via [source] -> [middle] -> [target]"),
+                note("/source/package-info.java", 0, 0, 194, 1, 1, "[source] -> [middle] used at /source/Source.java:6:13"),
+                note("/source/package-info.java", 0, 0, 194, 1, 1, "[middle] -> [target] used at /middle/Middle.java:6:13")
+            );
+        }
+
+        @Test void shouldReportForbiddenTransitiveDependencyInPlugin() {
+            compileWithPlugin(
+                ruledPackageInfo("source", "middle", "target"),
+                type("source", "Source", "middle.Middle"),
+
+                packageInfo("middle", "target"),
+                type("middle", "Middle", "target.Target"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect(
+                error("/source/package-info.java", 0, 0, 194, 1, 1, "compiler.err.proc.messager",
+                    "Forbidden transitive dependency on [target] via [source] -> [middle] -> [target]"),
+                note("/source/package-info.java", 0, 0, 194, 1, 1, "[source] -> [middle] used at /source/Source.java:6:13"),
+                note("/source/package-info.java", 0, 0, 194, 1, 1, "[middle] -> [target] used at /middle/Middle.java:6:13")
+            );
+        }
+
+        @Test void shouldInheritRuleFromSuperPackage() {
+            compile(
+                ruledPackageInfo("app", null, "target+"),
+                packageInfo("app.source", "middle"),
+                type("app.source", "Source", "middle.Middle"),
+
+                packageInfo("middle", "target.sub"),
+                type("middle", "Middle", "target.sub.Target"),
+
+                packageInfo("target.sub"),
+                file("target/sub/Target.java", "" +
+                    "package target.sub;\n" +
+                    "\n" +
+                    "public interface Target {\n" +
+                    "}\n"));
+
+            expect(
+                error("/app/source/package-info.java", 0, 0, 98, 1, 1, "compiler.err.proc.messager",
+                    "Forbidden transitive dependency on [target.sub] via [app.source] -> [middle] -> [target.sub]")
+            );
+        }
+
+        @Test void shouldNotReportTransitiveDependencyOnOtherPackage() {
+            compile(
+                ruledPackageInfo("source", "middle", "other"),
+                type("source", "Source", "middle.Middle"),
+
+                packageInfo("middle", "target"),
+                type("middle", "Middle", "target.Target"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect();
+        }
+    }
+
+    @Nested class CouplingMetrics {
+        private void compileSourceUsingTargetAndList() {
+            compile(
+                packageInfo("source", "target", "java.util"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import java.util.List;\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private List<Target> targets;\n" +
+                    "\n" +
+                    "    public abstract static class Nested {\n" +
+                    "    }\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+        }
+
+        @Test void shouldNoteMetrics() {
+            option("pdap.metrics", "true");
+
+            compileSourceUsingTargetAndList();
+
+            expect(
+                note("/source/package-info.java", 0, 0, 109, 1, 1, "coupling: Ca=0, Ce=2, I=1.00, A=0.50"),
+                note("/target/package-info.java", 0, 0, 86, 1, 1, "coupling: Ca=1, Ce=0, I=0.00, A=1.00")
+            );
+        }
+
+        @Test void shouldNoteMetricsInPlugin() {
+            compileWithPlugin(new String[]{"pdap.metrics=true"},
+                packageInfo("source", "target"),
+                targetInterface(),
+                packageInfo("target"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source implements Target {\n" +
+                    "}\n"));
+
+            expect(
+                note("/source/package-info.java", 0, 0, 94, 1, 1, "coupling: Ca=0, Ce=1, I=1.00, A=0.00"),
+                note("/target/package-info.java", 0, 0, 86, 1, 1, "coupling: Ca=1, Ce=0, I=0.00, A=1.00")
+            );
+        }
+
+        @Test void shouldWarnAboutFanOut() {
+            option("pdap.maxFanOut", "1");
+
+            compileSourceUsingTargetAndList();
+
+            expect(
+                warning("/source/package-info.java", 0, 0, 109, 1, 1, "compiler.warn.proc.messager",
+                    "Fan-out of 2 packages exceeds the maximum of 1")
+            );
+        }
+
+        @Test void shouldWarnAboutFanIn() {
+            option("pdap.maxFanIn", "1");
+
+            compile(
+                packageInfo("source", "target"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source implements Target {\n" +
+                    "}\n"),
+
+                packageInfo("other", "target"),
+                file("other/Other.java", "" +
+                    "package other;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Other implements Target {\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect(
+                warning("/target/package-info.java", 0, 0, 86, 1, 1, "compiler.warn.proc.messager",
+                    "Fan-in of 2 packages exceeds the maximum of 1")
+            );
+        }
+
+        @Test void shouldReportInvalidMaxFanOutInPlugin() {
+            compileWithPlugin(new String[]{"pdap.maxFanOut=many"},
+                packageInfo("source", "target"),
+                targetInterface(),
+                packageInfo("target"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source implements Target {\n" +
+                    "}\n"));
+
+            expect(
+                error("Invalid pdap.maxFanOut [many]: expected a number")
+            );
+        }
+
+        @Test void shouldNotWarnWithinLimits() {
+            option("pdap.maxFanIn", "1");
+            option("pdap.maxFanOut", "2");
+
+            compileSourceUsingTargetAndList();
+
+            expect();
+        }
+    }
+
+    @Nested class GraphExports {
+        private void compileSourceUsingTarget() {
+            compile(
+                packageInfo("source", "target", "java.util"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source implements Target {\n" +
+                    "    private Target target;\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect(
+                warning("/source/package-info.java", 0, 0, 109, 1, 1, "compiler.warn.proc.messager", "Unused dependency on [java.util]")
+            );
+        }
+
+        @Test void shouldExportJson() {
+            option("pdap.export", "json");
+
+            compileSourceUsingTarget();
+
+            assertThat(resource("META-INF/pdap/dependencies.json")).isEqualTo("" +
+                "{\"dependencies\":[" +
+                "{\"source\":\"source\",\"target\":\"target\",\"type\":\"primary\",\"used\":true,\"usages\":2}," +
+                "{\"source\":\"source\",\"target\":\"java.util\",\"type\":\"primary\",\"used\":false,\"usages\":0}" +
+                "]}");
+        }
+
+        @Test void shouldExportDot() {
+            option("pdap.export", "dot");
+
+            compileSourceUsingTarget();
+
+            assertThat(resource("META-INF/pdap/dependencies.dot")).isEqualTo("" +
+                "digraph dependencies {\n" +
+                "  \"source\" -> \"target\" [type=\"primary\", usages=2];\n" +
+                "  \"source\" -> \"java.util\" [type=\"primary\", usages=0, style=dashed];\n" +
+                "}\n");
+        }
+
+        @Test void shouldExportGraphMl() {
+            option("pdap.export", "graphml");
+
+            compileSourceUsingTarget();
+
+            assertThat(resource("META-INF/pdap/dependencies.graphml")).isEqualTo("" +
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\">\n" +
+                "  <key id=\"type\" for=\"edge\" attr.name=\"type\" attr.type=\"string\"/>\n" +
+                "  <key id=\"used\" for=\"edge\" attr.name=\"used\" attr.type=\"boolean\"/>\n" +
+                "  <key id=\"usages\" for=\"edge\" attr.name=\"usages\" attr.type=\"int\"/>\n" +
+                "  <graph id=\"dependencies\" edgedefault=\"directed\">\n" +
+                "    <node id=\"source\"/>\n" +
+                "    <node id=\"target\"/>\n" +
+                "    <edge source=\"source\" target=\"target\">" +
+                "<data key=\"type\">primary</data><data key=\"used\">true</data><data key=\"usages\">2</data></edge>\n" +
+                "    <node id=\"java.util\"/>\n" +
+                "    <edge source=\"source\" target=\"java.util\">" +
+                "<data key=\"type\">primary</data><data key=\"used\">false</data><data key=\"usages\">0</data></edge>\n" +
+                "  </graph>\n" +
+                "</graphml>\n");
+        }
+
+        @Test void shouldExportInferredDependencies() {
+            option("pdap.export", "json");
+
+            compile(
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source implements Target {\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expectNoMessageStartingWith("inferred");
+            expect(
+                warning("no @AllowDependenciesOn annotation")
+            );
+            assertThat(resource("META-INF/pdap/dependencies.json")).isEqualTo("" +
+                "{\"dependencies\":[{\"source\":\"source\",\"target\":\"target\",\"type\":\"inferred\",\"used\":true,\"usages\":1}]}");
+        }
+
+        @Test void shouldExportEachEdgeOnceForMultipleRounds() {
+            option("pdap.export", "json");
+
+            compileWith(new GeneratingProcessor(),
+                packageInfo("source", "target"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source implements Target {\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect();
+            assertThat(resource("META-INF/pdap/dependencies.json")).isEqualTo("" +
+                "{\"dependencies\":[{\"source\":\"source\",\"target\":\"target\",\"type\":\"primary\",\"used\":true,\"usages\":2}]}");
+        }
+
+        @Test void shouldExportInPlugin() {
+            compileWithPlugin(new String[]{"pdap.export=json"},
+                packageInfo("source", "target"),
+                targetInterface(),
+                packageInfo("target"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source implements Target {\n" +
+                    "}\n"));
+
+            expect();
+            assertThat(resource("META-INF/pdap/dependencies.json")).isEqualTo("" +
+                "{\"dependencies\":[{\"source\":\"source\",\"target\":\"target\",\"type\":\"primary\",\"used\":true,\"usages\":1}]}");
+        }
+
+        @Test void shouldFailToExportUnknownFormat() {
+            option("pdap.export", "foo");
+
+            compileSource("" +
+                "package source;\n" +
+                "\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "public class Source implements Target {\n" +
+                "}\n");
+
+            expect(error("Invalid pdap.export [foo]: expected one of [json, dot, graphml]"));
+        }
+
+        @Test void shouldFailToExportUnknownFormatInPlugin() {
+            compileWithPlugin(new String[]{"pdap.export=foo"},
+                packageInfo("source", "target"),
+                targetInterface(),
+                packageInfo("target"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source implements Target {\n" +
+                    "}\n"));
+
+            expect(error("Invalid pdap.export [foo]: expected one of [json, dot, graphml]"));
+        }
+    }
+
+    @Nested class SarifReports {
+        private static final String HEADER = "" +
+            "{\"$schema\":\"https://json.schemastore.org/sarif-2.1.0.json\",\"version\":\"2.1.0\",\"runs\":[{\"tool\":{\"driver\":{" +
+            "\"name\":\"pdap\",\"rules\":[" +
+            "{\"id\":\"forbidden-dependency\",\"shortDescription\":{\"text\":\"A dependency not allowed in the package-info\"}}," +
+            "{\"id\":\"invalid-dependency\",\"shortDescription\":{\"text\":\"An allowed dependency on a package that doesn't exist\"}}," +
+            "{\"id\":\"cyclic-dependency\",\"shortDescription\":{\"text\":\"A package allowing a dependency on itself\"}}," +
+            "{\"id\":\"unused-dependency\",\"shortDescription\":{\"text\":\"A dependency allowed in the package-info but not used\"}}," +
+            "{\"id\":\"package-cycle\",\"shortDescription\":{\"text\":\"A cycle of dependencies between packages\"}}," +
+            "{\"id\":\"forbidden-transitive-dependency\",\"shortDescription\":{\"text\":\"A dependency via other packages that a package-info forbids\"}}" +
+            "]}},\"results\":[";
+        private static final String FOOTER = "]}]}";
+
+        @BeforeEach void setUp() { option("pdap.sarif", "true"); }
+
+        private String result(String ruleId, String level, String message, String uri, int line, int column) {
+            return result(ruleId, level, message, uri, line, column, "") + "}";
+        }
+
+        /** Without the closing brace, so the related locations can follow */
+        private String result(String ruleId, String level, String message, String uri, int line, int column, String related) {
+            return "{\"ruleId\":\"" + ruleId + "\",\"level\":\"" + level + "\",\"message\":{\"text\":\"" + message + "\"}," +
+                "\"locations\":[" + location(uri, line, column) + "]" + related;
+        }
+
+        private String location(String uri, int line, int column) {
+            return "{\"physicalLocation\":{\"artifactLocation\":{\"uri\":\"" + uri + "\"}," +
+                "\"region\":{\"startLine\":" + line + ",\"startColumn\":" + column + "}}}";
+        }
+
+        @Test void shouldWriteSarifReport() {
+            compile(
+                packageInfo("source", "java.util", "undefined"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target target;\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect(
+                warning("/source/package-info.java", 0, 0, 112, 1, 1, "compiler.warn.proc.messager", "Unused dependency on [java.util]"),
+                error("/source/package-info.java", 0, 0, 112, 1, 1, "compiler.err.proc.messager",
+                    "Invalid @AllowDependenciesOn: unknown package [undefined]"),
+                error("/source/Source.java", 81, 66, 88, 6, 20, "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+            assertThat(resource("META-INF/pdap/dependencies.sarif")).isEqualTo(HEADER +
+                result("unused-dependency", "warning", "Unused dependency on [java.util]", "string:///source/package-info.java", 1, 1) + "," +
+                result("invalid-dependency", "error", "Invalid @AllowDependenciesOn: unknown package [undefined]",
+                    "string:///source/package-info.java", 1, 1) + "," +
+                result("forbidden-dependency", "error", "Forbidden dependency on [target]", "string:///source/Source.java", 6, 20) +
+                FOOTER);
+        }
+
+        @Test void shouldWriteSarifReportInPlugin() {
+            compileWithPlugin(new String[]{"pdap.sarif=true"},
+                packageInfo("source"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source implements Target {\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect(
+                error("/source/Source.java", 47, 40, -1, 5, 8, "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+            assertThat(resource("META-INF/pdap/dependencies.sarif")).isEqualTo(HEADER +
+                result("forbidden-dependency", "error", "Forbidden dependency on [target]", "string:///source/Source.java", 5, 8) +
+                FOOTER);
+        }
+
+        @Test void shouldWriteSitesOfForbiddenDependencyAsRelatedLocations() {
+            compile(
+                packageInfo("source"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target target;\n" +
+                    "\n" +
+                    "    private void target(Target target) {}\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect(
+                error("/source/Source.java", 81, 66, 88, 6, 20, "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+            assertThat(resource("META-INF/pdap/dependencies.sarif")).isEqualTo(HEADER +
+                result("forbidden-dependency", "error", "Forbidden dependency on [target]", "string:///source/Source.java", 6, 20,
+                    ",\"relatedLocations\":[" +
+                        location("string:///source/Source.java", 6, 13) + "," +
+                        location("string:///source/Source.java", 8, 25) + "]}") +
+                FOOTER);
+        }
+
+        @Test void shouldWriteDependencyCycle() {
+            compile(
+                packageInfo("source", "target"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Target target;\n" +
+                    "}\n"),
+
+                packageInfo("target", "source"),
+                file("target/Target.java", "" +
+                    "package target;\n" +
+                    "\n" +
+                    "import source.Source;\n" +
+                    "\n" +
+                    "public class Target {\n" +
+                    "    private Source source;\n" +
+                    "}\n"));
+
+            expect(
+                warning("/source/package-info.java", 0, 0, 94, 1, 1, "compiler.warn.proc.messager",
+                    "Dependency cycle [source] -> [target] -> [source]")
+            );
+            assertThat(resource("META-INF/pdap/dependencies.sarif")).isEqualTo(HEADER +
+                result("package-cycle", "warning", "Dependency cycle [source] -> [target] -> [source]", "string:///source/package-info.java", 1, 1) +
+                FOOTER);
+        }
+
+        @Test void shouldWriteForbiddenTransitiveDependencyInPlugin() {
+            compileWithPlugin(new String[]{"pdap.sarif=true"},
+                file("source/package-info.java", "" +
+                    "@AllowDependenciesOn(\"middle\")\n" +
+                    "@ForbidTransitiveDependenciesOn(\"target\")\n" +
+                    "package source;\n" +
+                    "\n" +
+                    "import com.github.t1.pdap.AllowDependenciesOn;\n" +
+                    "import com.github.t1.pdap.ForbidTransitiveDependenciesOn;\n"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import middle.Middle;\n" +
+                    "\n" +
+                    "public class Source {\n" +
+                    "    private Middle middle;\n" +
+                    "}\n"),
+
+                packageInfo("middle", "target"),
+                file("middle/Middle.java", "" +
+                    "package middle;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Middle {\n" +
+                    "    private Target target;\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect(
+                error("/source/package-info.java", 0, 0, 194, 1, 1, "compiler.err.proc.messager",
+                    "Forbidden transitive dependency on [target] via [source] -> [middle] -> [target]")
+            );
+            assertThat(resource("META-INF/pdap/dependencies.sarif")).isEqualTo(HEADER +
+                result("forbidden-transitive-dependency", "error", "Forbidden transitive dependency on [target] via [source] -> [middle] -> [target]",
+                    "string:///source/package-info.java", 1, 1) +
+                FOOTER);
+        }
+    }
+
+    @Nested class LongExpressionChains {
+        private static final int LENGTH = 10_000;
+
+        /** Only javac's parser copes with such expressions; its attribution would overflow the stack itself */
+        @BeforeEach void setUp() { compilerOption("-proc:only"); }
+
+        private String repeat(String string) {
+            return Stream.generate(() -> string).limit(LENGTH).collect(joining());
+        }
+
+        /** The error is reported on the method using the target, so it ends after the long expression */
+        private void compileAndExpectForbiddenMethod(String expression) {
+            String source = "" +
+                "package source;\n" +
+                "\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "public class Source {\n" +
+                "    private String method() {\n" +
+                "        return " + expression + ";\n" +
+                "    }\n" +
+                "}\n";
+
+            compileForbiddenSource(source);
+
+            expect(
+                error("/source/Source.java", 81, 66, source.lastIndexOf('}', source.length() - 3) + 1, 6, 20,
+                    "compiler.err.proc.messager", "Forbidden dependency on [target]")
+            );
+        }
+
+        @Test void shouldScanLongMethodChain() {
+            compileAndExpectForbiddenMethod("new StringBuilder().append(Target.class)" + repeat(".append(1)") + ".toString()");
+        }
+
+        @Test void shouldScanLongConcatenation() {
+            compileAndExpectForbiddenMethod("Target.class.getName()" + repeat(" + \"x\""));
+        }
+    }
+
+    @Nested class DependencyListenerEvents {
+        @BeforeEach void setUp() throws IOException {
+            RecordingListener.EVENTS.clear();
+            Path services = Files.createTempFile("services", "");
+            services.toFile().deleteOnExit();
+            Files.write(services, singletonList(RecordingListener.class.getName()));
+            listenerClassLoader(new ClassLoader(getClass().getClassLoader()) {
+                @Override public Enumeration<URL> getResources(String name) throws IOException {
+                    return name.equals("META-INF/services/" + DependencyListener.class.getName())
+                        ? enumeration(singletonList(services.toUri().toURL())) : super.getResources(name);
+                }
+            });
+        }
+
+        @Test void shouldNotifyListenerAboutAllDependencies() {
+            option("pdap.analysis", "adaptive");
+
+            compile(
+                packageInfo("source", "target", "java.util"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import java.util.List;\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source implements Target {\n" +
+                    "    private List<String> list;\n" +
+                    "\n" +
+                    "    private Target target() { return null; }\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect();
+            assertThat(RecordingListener.EVENTS).containsExactlyInAnyOrder(
+                "init",
+                "source.Source -> java.util (IMPORT) by source.Source",
+                "source.Source -> target (IMPORT) by source.Source",
+                "source.Source -> target (SUPER_TYPE) by source.Source",
+                "source.Source -> java.util (VARIABLE_TYPE) by list",
+                "source.Source -> java.lang (VARIABLE_TYPE) by list",
+                "source.Source -> target (RETURN_TYPE) by target()",
+                "finish");
+        }
+
+        @Test void shouldNotifyListenerAboutAllDependenciesInPlugin() {
+            compileWithPlugin(
+                packageInfo("source", "target"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source implements Target {\n" +
+                    "    private Target target() {\n" +
+                    "        return new Target() {\n" +
+                    "            private Target self() { return this; }\n" +
+                    "        };\n" +
+                    "    }\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect();
+            assertThat(RecordingListener.EVENTS).containsExactly(
+                "init",
+                "source.Source -> target (IMPORT) by source.Source",
+                "source.Source -> target (SUPER_TYPE) by source.Source",
+                "source.Source -> target (RETURN_TYPE) by target()",
+                "source.Source -> target (INSTANTIATION) by target()",
+                "source.Source -> target (RETURN_TYPE) by target()",
+                "finish");
+        }
+
+        /** Anonymous classes, generated constructors, and implicit <code>super()</code> calls, that both modes must handle alike */
+        private final StringJavaFileObject[] sameEventsSources = {
+            packageInfo("source", "target"),
+            file("source/Source.java", "" +
+                "package source;\n" +
+                "\n" +
+                "import target.Target;\n" +
+                "\n" +
+                "public class Source extends target.Base implements Target {\n" +
+                "    public Source() {}\n" +
+                "\n" +
+                "    private Target target() {\n" +
+                "        return new Target() {\n" +
+                "            private Target self() { return this; }\n" +
+                "        };\n" +
+                "    }\n" +
+                "}\n"),
+
+            packageInfo("target"),
+            targetInterface(),
+            file("target/Base.java", "" +
+                "package target;\n" +
+                "\n" +
+                "public class Base {\n" +
+                "}\n")};
+        private final String[] sameEvents = {
+            "init",
+            "source.Source -> target (IMPORT) by source.Source",
+            "source.Source -> target (SUPER_TYPE) by source.Source",
+            "source.Source -> target (SUPER_TYPE) by source.Source",
+            "source.Source -> target (RETURN_TYPE) by target()",
+            "source.Source -> target (INSTANTIATION) by target()",
+            "source.Source -> target (RETURN_TYPE) by target()",
+            "finish"};
+
+        @Test void shouldNotifyListenerAboutTheSameEventsAsThePlugin() {
+            compile(sameEventsSources);
+
+            expect();
+            assertThat(RecordingListener.EVENTS).containsExactlyInAnyOrder(sameEvents);
+        }
+
+        @Test void shouldNotifyListenerAboutTheSameEventsInPluginAsTheProcessor() {
+            compileWithPlugin(sameEventsSources);
+
+            expect();
+            assertThat(RecordingListener.EVENTS).containsExactlyInAnyOrder(sameEvents);
+        }
+
+        @Test void shouldFinishListenerOnlyOnceForMultipleRounds() {
+            compileWith(new GeneratingProcessor(),
+                packageInfo("source", "target"),
+                file("source/Source.java", "" +
+                    "package source;\n" +
+                    "\n" +
+                    "import target.Target;\n" +
+                    "\n" +
+                    "public class Source implements Target {\n" +
+                    "}\n"),
+
+                packageInfo("target"),
+                targetInterface());
+
+            expect();
+            assertThat(RecordingListener.EVENTS).containsExactlyInAnyOrder(
+                "init",
+                "source.Source -> target (IMPORT) by source.Source",
+                "source.Source -> target (SUPER_TYPE) by source.Source",
+                "source.Generated -> target (SUPER_TYPE) by source.Generated",
+                "finish");
+        }
+    }
+
+    /** Generates a type in the first round, so there is a second round with a root element */
+    @SupportedAnnotationTypes("*")
+    private static class GeneratingProcessor extends AbstractProcessor {
+        private boolean generated = false;
+
+        @Override public SourceVersion getSupportedSourceVersion() { return SourceVersion.latestSupported(); }
+
+        @Override public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            if (!generated) {
+                generated = true;
+                try (Writer writer = processingEnv.getFiler().createSourceFile("source.Generated").openWriter()) {
+                    writer.write("package source;\n\npublic class Generated implements target.Target {\n}\n");
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return false;
+        }
+    }
+
+    public static class RecordingListener implements DependencyListener {
+        private static final List<String> EVENTS = new ArrayList<>();
+
+        @Override public void init(ProcessingEnvironment processingEnv) { EVENTS.add("init"); }
+
+        @Override public void dependency(TypeElement type, String targetPackage, Element element, Kind kind) {
+            EVENTS.add(type + " -> " + targetPackage + " (" + kind + ") by " + element);
+        }
+
+        @Override public void finish() { EVENTS.add("finish"); }
+    }
 }
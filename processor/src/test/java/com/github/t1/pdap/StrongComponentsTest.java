@@ -0,0 +1,186 @@
+package com.github.t1.pdap;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StrongComponentsTest {
+    /** A graph of packages with the ids <code>0</code> to <code>size - 1</code> and the edges as pairs of source and target */
+    private static PackageGraph graph(int size, int... edges) {
+        PackageIds ids = new PackageIds();
+        for (int i = 0; i < size; i++)
+            ids.of("p" + i);
+        PackageGraph graph = new PackageGraph(ids);
+        for (int i = 0; i < edges.length; i += 2)
+            graph.add(edges[i], edges[i + 1]);
+        return graph;
+    }
+
+    private static Set<Set<Integer>> members(StrongComponents components) {
+        Set<Set<Integer>> all = new HashSet<>();
+        for (int component = 0; component < components.count; component++) {
+            Set<Integer> members = new HashSet<>();
+            for (int i = 0; i < components.size(component); i++) {
+                int member = components.member(component, i);
+                assertThat(components.component[member]).describedAs("component of p" + member).isEqualTo(component);
+                members.add(member);
+            }
+            all.add(members);
+        }
+        return all;
+    }
+
+    private static Set<Integer> set(Integer... members) { return new HashSet<>(Arrays.asList(members)); }
+
+    /** Each component may depend only on itself and on components with a lower number */
+    private static void assertReverseTopologicalOrder(PackageGraph graph, StrongComponents components) {
+        for (int source = 0; source < graph.size(); source++) {
+            BitSet targets = graph.targets(source);
+            for (int target = targets.nextSetBit(0); target >= 0; target = targets.nextSetBit(target + 1))
+                assertThat(components.component[target]).describedAs("p" + source + " -> p" + target)
+                    .isLessThanOrEqualTo(components.component[source]);
+        }
+    }
+
+    @Test void shouldFindSingletonsWithoutCycles() {
+        PackageGraph graph = graph(3, 0, 1, 1, 2, 0, 2);
+
+        StrongComponents components = new StrongComponents(graph);
+
+        assertThat(members(components)).containsOnly(set(0), set(1), set(2));
+        assertReverseTopologicalOrder(graph, components);
+    }
+
+    @Test void shouldFindSimpleCycle() {
+        PackageGraph graph = graph(4, 0, 1, 1, 2, 2, 0, 2, 3);
+
+        StrongComponents components = new StrongComponents(graph);
+
+        assertThat(members(components)).containsOnly(set(0, 1, 2), set(3));
+        assertReverseTopologicalOrder(graph, components);
+    }
+
+    @Test void shouldMergeNestedCycles() {
+        PackageGraph graph = graph(5,
+            0, 1, 1, 2, 2, 3, 3, 4, 4, 0, // the outer cycle
+            2, 1, // a cycle within
+            3, 1); // a shortcut back
+
+        StrongComponents components = new StrongComponents(graph);
+
+        assertThat(members(components)).containsOnly(set(0, 1, 2, 3, 4));
+    }
+
+    @Test void shouldMergeOverlappingCycles() {
+        PackageGraph graph = graph(6,
+            0, 1, 1, 2, 2, 0, // one cycle
+            2, 3, 3, 4, 4, 2, // another sharing p2
+            4, 5); // and out
+
+        StrongComponents components = new StrongComponents(graph);
+
+        assertThat(members(components)).containsOnly(set(0, 1, 2, 3, 4), set(5));
+        assertReverseTopologicalOrder(graph, components);
+    }
+
+    @Test void shouldSeparateCyclesConnectedOneWay() {
+        PackageGraph graph = graph(6,
+            0, 1, 1, 0,
+            1, 2, // one way
+            2, 3, 3, 2,
+            3, 4, 4, 5, 5, 4);
+
+        StrongComponents components = new StrongComponents(graph);
+
+        assertThat(members(components)).containsOnly(set(0, 1), set(2, 3), set(4, 5));
+        assertReverseTopologicalOrder(graph, components);
+        assertThat(components.component[5]).isLessThan(components.component[3]);
+        assertThat(components.component[3]).isLessThan(components.component[1]);
+    }
+
+    @Test void shouldKeepSelfLoopsAsSingletons() {
+        PackageGraph graph = graph(3, 0, 0, 0, 1, 1, 1, 1, 2);
+
+        StrongComponents components = new StrongComponents(graph);
+
+        assertThat(members(components)).containsOnly(set(0), set(1), set(2));
+        assertReverseTopologicalOrder(graph, components);
+    }
+
+    @Test void shouldFindPackagesWithoutDependencies() {
+        PackageGraph graph = graph(3);
+
+        StrongComponents components = new StrongComponents(graph);
+
+        assertThat(members(components)).containsOnly(set(0), set(1), set(2));
+    }
+
+    /** A recursive Tarjan would overflow the default stack on such a long path; we can't go much longer, as each row has bits for all ids */
+    @Test void shouldFindLongChainCycle() {
+        int size = 50_000;
+        PackageGraph graph = graph(size);
+        for (int i = 0; i < size; i++)
+            graph.add(i, (i + 1) % size);
+
+        StrongComponents components = new StrongComponents(graph);
+
+        assertThat(components.count).isEqualTo(1);
+        assertThat(components.size(0)).isEqualTo(size);
+    }
+
+    @Test void shouldOrderLongChain() {
+        int size = 50_000;
+        PackageGraph graph = graph(size);
+        for (int i = 0; i + 1 < size; i++)
+            graph.add(i, i + 1);
+
+        StrongComponents components = new StrongComponents(graph);
+
+        assertThat(components.count).isEqualTo(size);
+        assertReverseTopologicalOrder(graph, components);
+    }
+
+    /** Two packages are in the same component, iff they reach each other */
+    @Test void shouldFindMutuallyReachablePackages() {
+        int size = 300;
+        Random random = new Random(4711);
+        PackageGraph graph = graph(size);
+        for (int i = 0; i < 2 * size; i++)
+            graph.add(random.nextInt(size), random.nextInt(size));
+
+        StrongComponents components = new StrongComponents(graph);
+
+        assertReverseTopologicalOrder(graph, components);
+        BitSet[] reachable = new BitSet[size];
+        for (int i = 0; i < size; i++)
+            reachable[i] = search(graph, i);
+        for (int a = 0; a < size; a++)
+            for (int b = 0; b < size; b++)
+                if (a != b)
+                    assertThat(components.component[a] == components.component[b]).describedAs("p" + a + " and p" + b)
+                        .isEqualTo(reachable[a].get(b) && reachable[b].get(a));
+    }
+
+    private static BitSet search(PackageGraph graph, int source) {
+        BitSet reached = new BitSet();
+        Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(source);
+        while (!queue.isEmpty()) {
+            BitSet targets = graph.targets(queue.remove());
+            for (int target = targets.nextSetBit(0); target >= 0; target = targets.nextSetBit(target + 1))
+                if (!reached.get(target)) {
+                    reached.set(target);
+                    queue.add(target);
+                }
+        }
+        return reached;
+    }
+}
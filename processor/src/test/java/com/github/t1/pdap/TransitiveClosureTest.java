@@ -0,0 +1,98 @@
+package com.github.t1.pdap;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TransitiveClosureTest {
+    private static final int SIZE = TransitiveClosure.PARALLEL_THRESHOLD + 476;
+
+    /**
+     * A random graph large enough for the parallel mode: mostly edges to lower ids, so there are many levels,
+     * and some to higher ids, so there are cycles of all sizes, and some self loops
+     */
+    private static PackageGraph randomGraph(long seed) {
+        Random random = new Random(seed);
+        PackageIds ids = new PackageIds();
+        for (int i = 0; i < SIZE; i++)
+            ids.of("p" + i);
+        PackageGraph graph = new PackageGraph(ids);
+        for (int source = 0; source < SIZE; source++) {
+            int edges = random.nextInt(4);
+            for (int i = 0; i < edges; i++)
+                if (source > 0)
+                    graph.add(source, random.nextInt(source));
+            if (random.nextInt(20) == 0)
+                graph.add(source, random.nextInt(SIZE));
+            if (random.nextInt(50) == 0)
+                graph.add(source, source);
+        }
+        return graph;
+    }
+
+    /** The naive way: a breadth first search; the source reaches itself only through a cycle */
+    private static BitSet search(PackageGraph graph, int source) {
+        BitSet reached = new BitSet();
+        Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(source);
+        while (!queue.isEmpty()) {
+            BitSet targets = graph.targets(queue.remove());
+            for (int target = targets.nextSetBit(0); target >= 0; target = targets.nextSetBit(target + 1)) {
+                if (!reached.get(target)) {
+                    reached.set(target);
+                    queue.add(target);
+                }
+            }
+        }
+        return reached;
+    }
+
+    private static void assertReachesLikeSearch(PackageGraph graph, TransitiveClosure closure) {
+        for (int source = 0; source < graph.size(); source++) {
+            BitSet expected = search(graph, source);
+            assertThat(closure.reachable(source)).describedAs("reachable from p" + source).isEqualTo(expected);
+            BitSet reaches = new BitSet();
+            for (int target = 0; target < graph.size(); target++)
+                reaches.set(target, closure.reaches(source, target));
+            assertThat(reaches).describedAs("reaches from p" + source).isEqualTo(expected);
+        }
+    }
+
+    @Test void shouldReachLikeSearchSequentially() {
+        PackageGraph graph = randomGraph(4711);
+
+        assertReachesLikeSearch(graph, new TransitiveClosure(graph, false));
+    }
+
+    @Test void shouldReachLikeSearchInParallel() {
+        PackageGraph graph = randomGraph(4711);
+
+        assertReachesLikeSearch(graph, new TransitiveClosure(graph, true));
+    }
+
+    @Test void shouldReachTheSameInBothModes() {
+        for (long seed = 0; seed < 5; seed++) {
+            PackageGraph graph = randomGraph(seed);
+            TransitiveClosure sequential = new TransitiveClosure(graph, false);
+            TransitiveClosure parallel = new TransitiveClosure(graph);
+
+            for (int source = 0; source < graph.size(); source++)
+                assertThat(parallel.reachable(source)).describedAs("reachable from p" + source + " with seed " + seed)
+                    .isEqualTo(sequential.reachable(source));
+        }
+    }
+
+    @Test void shouldNotReachUnknownPackages() {
+        PackageGraph graph = randomGraph(4711);
+        TransitiveClosure closure = new TransitiveClosure(graph);
+
+        assertThat(closure.reaches(SIZE, 0)).isFalse();
+        assertThat(closure.reaches(0, SIZE)).isFalse();
+        assertThat(closure.reachable(SIZE)).isEqualTo(new BitSet());
+    }
+}